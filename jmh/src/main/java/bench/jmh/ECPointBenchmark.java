@@ -0,0 +1,64 @@
+package bench.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import sm2.support.ECPoint;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import static sm2.Curve.n;
+
+/**
+ * 'ECPointBenchmark' measures point addition and fixed-base, ladder and
+ * variable-base scalar multiplication; the results are read back as affine x
+ * so that the lazy normalization is included
+ */
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ECPointBenchmark {
+    
+    private final Random random = new Random();
+    private ECPoint p1;
+    private ECPoint p2;
+    
+    @Setup
+    public void setup() {
+        p1 = ECPoint.multiplyG(scalar());
+        p2 = ECPoint.multiplyG(scalar());
+    }
+    
+    private BigInteger scalar() {
+        return new BigInteger(n.bitLength() - 1, random).add(BigInteger.ONE);
+    }
+    
+    @Benchmark
+    public BigInteger plus() {
+        return p1.plus(p2).getX();
+    }
+    
+    @Benchmark
+    public BigInteger multiplyFixedBase() {
+        return ECPoint.multiplyG(scalar()).getX();
+    }
+    
+    @Benchmark
+    public BigInteger multiplyLadderX() {
+        return ECPoint.multiplyGX(scalar());
+    }
+    
+    @Benchmark
+    public BigInteger multiplyVariableBase() {
+        return p1.multiply(scalar()).getX();
+    }
+}
@@ -0,0 +1,36 @@
+package bench.jmh;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+
+/**
+ * 'Runner' is the entry point of benchmarks.jar. Without arguments it runs
+ * every benchmark on 1 thread and on all processors, with the GC profiler so
+ * that ops/s is reported together with the allocation rate. With arguments
+ * it behaves like the plain JMH command line.
+ */
+public class Runner {
+    
+    public static void main(String[] args) throws IOException, RunnerException, CommandLineOptionException {
+        if (args.length > 0) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        int cpus = Runtime.getRuntime().availableProcessors();
+        for (int threads : cpus > 1 ? new int[]{1, cpus} : new int[]{1}) {
+            Options options = new OptionsBuilder()
+                    .parent(new CommandLineOptions())
+                    .include("bench\\.jmh\\..*Benchmark")
+                    .threads(threads)
+                    .addProfiler(GCProfiler.class)
+                    .build();
+            new org.openjdk.jmh.runner.Runner(options).run();
+        }
+    }
+}
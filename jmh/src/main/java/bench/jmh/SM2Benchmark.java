@@ -0,0 +1,74 @@
+package bench.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import sm2.KeyPair;
+import sm2.NonceGenerator;
+import sm2.SM2;
+
+import java.util.ArrayList;
+
+/**
+ * 'SM2Benchmark' measures key generation, signing with each nonce and
+ * multiplication option, and verification
+ */
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SM2Benchmark {
+    
+    private static final String ID = "ALICE123@YAHOO.COM";
+    
+    private final byte[] msg = "message digest".getBytes();
+    private SM2 signer;
+    private SM2 ladderSigner;
+    private SM2 deterministicSigner;
+    private SM2 verifier;
+    private ArrayList<byte[]> sign;
+    
+    @Setup
+    public void setup() {
+        KeyPair key = new KeyPair();
+        signer = new SM2(ID, key);
+        ladderSigner = new SM2(ID, key);
+        ladderSigner.setLadder(true);
+        deterministicSigner = new SM2(ID, key);
+        deterministicSigner.setNonceGenerator(NonceGenerator.deterministic());
+        verifier = new SM2(ID, key.getPublic());
+        sign = signer.sign(msg);
+    }
+    
+    @Benchmark
+    public KeyPair keyPairGenerate() {
+        return new KeyPair();
+    }
+    
+    @Benchmark
+    public ArrayList<byte[]> sign() {
+        return signer.sign(msg);
+    }
+    
+    @Benchmark
+    public ArrayList<byte[]> signLadder() {
+        return ladderSigner.sign(msg);
+    }
+    
+    @Benchmark
+    public ArrayList<byte[]> signDeterministic() {
+        return deterministicSigner.sign(msg);
+    }
+    
+    @Benchmark
+    public boolean verify() {
+        return verifier.verify(msg, sign);
+    }
+}
@@ -0,0 +1,43 @@
+package bench.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import sm3.SM3;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * 'SM3Benchmark' measures SM3.hash at several message sizes
+ */
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SM3Benchmark {
+    
+    @Param({"64", "1024", "16384", "1048576"})
+    public int size;
+    
+    private byte[] msg;
+    
+    @Setup
+    public void setup() {
+        msg = new byte[size];
+        new Random(size).nextBytes(msg);
+    }
+    
+    @Benchmark
+    public byte[] hash() throws IOException {
+        return SM3.hash(msg);
+    }
+}
@@ -0,0 +1,196 @@
+package sm2;
+
+import sm2.support.ECPoint;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 批量签名验证
+ * <p>
+ * 将一批(公钥/ZA, 消息, 签名)分成小段在ForkJoin池中并行验证，每项的杂凑和验证互不依赖。
+ * 同一公钥的预计算表由ECPoint的缓存共享，因此同一签名者的多个签名不会重复建表。
+ */
+public class BatchVerifier {
+    
+    /**
+     * 每个任务至少验证的项数，更小的段不再拆分
+     */
+    private static final int THRESHOLD = 8;
+    
+    private final ForkJoinPool pool;
+    
+    /**
+     * 使用公共ForkJoin池
+     */
+    public BatchVerifier() {
+        this(ForkJoinPool.commonPool());
+    }
+    
+    /**
+     * 使用指定的ForkJoin池
+     *
+     * @param pool 执行验证的线程池
+     */
+    public BatchVerifier(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+    
+    /**
+     * 待验证的一项
+     */
+    public static class Item {
+        private final SM2 verifier;
+        private final byte[] M;
+        private final ArrayList<byte[]> sign;
+        
+        /**
+         * @param verifier 由签名者公钥构造的SM2，可被多项共用
+         * @param M        消息
+         * @param sign     签名(r, s)
+         */
+        public Item(SM2 verifier, byte[] M, ArrayList<byte[]> sign) {
+            this.verifier = verifier;
+            this.M = M;
+            this.sign = sign;
+        }
+        
+        /**
+         * @param za        签名者的ZA
+         * @param publickey 签名者公钥
+         * @param M         消息
+         * @param sign      签名(r, s)
+         */
+        public Item(byte[] za, ECPoint publickey, byte[] M, ArrayList<byte[]> sign) {
+            this(new SM2(za, publickey), M, sign);
+        }
+        
+        /**
+         * 验证本项，签名格式错误时视为验证失败
+         *
+         * @return 验证结果
+         */
+        boolean verify() {
+            try {
+                return this.verifier.verify(this.M, this.sign);
+            } catch (RuntimeException e) {
+                return false;
+            }
+        }
+    }
+    
+    /**
+     * 验证所有项
+     *
+     * @param items 待验证项
+     * @return 结果位图，第i位为1表示第i项验证通过
+     */
+    public BitSet verify(List<Item> items) {
+        boolean[] result = new boolean[items.size()];
+        pool.invoke(new Task(items, 0, items.size(), result, null));
+        BitSet bits = new BitSet(result.length);
+        for (int i = 0; i < result.length; i++) {
+            if (result[i]) {
+                bits.set(i);
+            }
+        }
+        return bits;
+    }
+    
+    /**
+     * 判断是否所有项都验证通过，遇到第一个失败项后其余任务不再继续验证
+     *
+     * @param items 待验证项
+     * @return 全部通过时为true
+     */
+    public boolean verifyAllValid(List<Item> items) {
+        AtomicBoolean failed = new AtomicBoolean();
+        pool.invoke(new Task(items, 0, items.size(), new boolean[items.size()], failed));
+        return !failed.get();
+    }
+    
+    /**
+     * 验证items[from, to)的任务
+     */
+    private static class Task extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        
+        private final List<Item> items;
+        private final int from, to;
+        private final boolean[] result;
+        /**
+         * 只需判断全部通过时不为null，任一项失败后置为true
+         */
+        private final AtomicBoolean failed;
+        
+        Task(List<Item> items, int from, int to, boolean[] result, AtomicBoolean failed) {
+            this.items = items;
+            this.from = from;
+            this.to = to;
+            this.result = result;
+            this.failed = failed;
+        }
+        
+        @Override
+        protected void compute() {
+            if (to - from > THRESHOLD) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Task(items, from, mid, result, failed), new Task(items, mid, to, result, failed));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                if (failed != null && failed.get()) {
+                    return;
+                }
+                result[i] = items.get(i).verify();
+                if (!result[i] && failed != null) {
+                    failed.set(true);
+                }
+            }
+        }
+    }
+}
+
+class BatchVerifierTest {
+    public static void main(String[] args) {
+        byte[] M = "message digest".getBytes();
+        KeyPair[] keys = new KeyPair[16];
+        SM2[] signers = new SM2[keys.length], verifiers = new SM2[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = new KeyPair();
+            signers[i] = new SM2("ALICE123@YAHOO.COM", keys[i]);
+            verifiers[i] = new SM2("ALICE123@YAHOO.COM", keys[i].getPublic());
+        }
+        List<BatchVerifier.Item> items = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            int k = i % keys.length;
+            byte[] msg = (i % 97 == 0) ? "another msg".getBytes() : M;
+            items.add(new BatchVerifier.Item(verifiers[k], msg, signers[k].sign(M)));
+        }
+        BatchVerifier batch = new BatchVerifier();
+        BitSet bits = batch.verify(items);
+        boolean same = true;
+        for (int i = 0; i < items.size(); i++) {
+            same &= bits.get(i) == items.get(i).verify();
+        }
+        System.out.println("batch matches verify: " + same + ", valid " + bits.cardinality() + "/" + items.size());
+        System.out.println("all valid: " + batch.verifyAllValid(items)
+                + ", without bad items: " + batch.verifyAllValid(items.subList(1, 97)));
+        for (int r = 0; r < 5; r++) {
+            long t0 = System.nanoTime();
+            for (BatchVerifier.Item item : items) {
+                item.verify();
+            }
+            long t1 = System.nanoTime();
+            batch.verify(items);
+            long t2 = System.nanoTime();
+            System.out.printf("sequential: %.0f verify/s, batch (%d threads): %.0f verify/s%n",
+                    items.size() / ((t1 - t0) / 1e9), ForkJoinPool.commonPool().getParallelism(),
+                    items.size() / ((t2 - t1) / 1e9));
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package sm2;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * 预先生成的临时密钥对池
+ * <p>
+ * 后台守护线程按批调用KeyPair.generate补充池中的密钥对，一批共用一次求逆转换为仿射坐标；
+ * 池满时该线程阻塞在队列上。取用时池为空则当场生成一个，不等待。
+ * 每个密钥对只会被取出一次，可被多个线程同时取用。
+ */
+public class EphemeralKeyPool implements AutoCloseable {
+    
+    private static final int BATCH = 64;
+    
+    private final BlockingQueue<KeyPair> queue;
+    private final Thread refill;
+    
+    /**
+     * 创建并启动后台补充线程
+     *
+     * @param capacity 池的容量
+     */
+    public EphemeralKeyPool(int capacity) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.refill = new Thread(this::refill, "sm2-ephemeral-pool");
+        this.refill.setDaemon(true);
+        this.refill.start();
+    }
+    
+    private void refill() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                for (KeyPair keypair : KeyPair.generate(BATCH)) {
+                    this.queue.put(keypair);
+                }
+            }
+        } catch (InterruptedException e) {
+            // close
+        }
+    }
+    
+    /**
+     * 取出一个临时密钥对，池为空时当场生成
+     *
+     * @return 密钥对
+     */
+    public KeyPair take() {
+        KeyPair keypair = this.queue.poll();
+        return keypair != null ? keypair : new KeyPair();
+    }
+    
+    /**
+     * @return 池中现有的密钥对个数
+     */
+    public int available() {
+        return this.queue.size();
+    }
+    
+    /**
+     * 停止后台补充，池中剩余的密钥对仍可取用
+     */
+    @Override
+    public void close() {
+        this.refill.interrupt();
+    }
+}
@@ -0,0 +1,82 @@
+package sm2;
+
+import sm3.SM3;
+
+/**
+ * GB/T 32918中基于SM3的密钥派生函数KDF(Z, klen)
+ * <p>
+ * 输出按32字节一块依次生成，Ha_ct = SM3(Z || ct)，ct从1开始。Z只吸收一次，
+ * 之后每块从该状态复制，再吸收4字节的计数器，因此可以边生成边使用，不必一次得到全部klen字节。
+ * 一个实例只用于一次派生，不能被多个线程同时使用。
+ */
+final class KDF {
+    
+    private final SM3 base = new SM3();
+    private final SM3 sm3 = new SM3();
+    private final byte[] block = new byte[32];
+    private final byte[] counter = new byte[4];
+    private int ct = 1;
+    private int blockPos = 32;
+    
+    /**
+     * 输出是否全为0
+     */
+    private boolean allZero = true;
+    
+    /**
+     * @param Z 共享信息，按顺序拼接
+     */
+    KDF(byte[]... Z) {
+        for (byte[] z : Z) {
+            this.base.update(z);
+        }
+    }
+    
+    /**
+     * 将buf中的len字节与接下来的输出异或
+     */
+    void xor(byte[] buf, int off, int len) {
+        for (int i = 0; i < len; i++) {
+            if (this.blockPos == 32) {
+                this.nextBlock();
+            }
+            byte t = this.block[this.blockPos++];
+            this.allZero &= t == 0;
+            buf[off + i] ^= t;
+        }
+    }
+    
+    /**
+     * 取接下来的len字节输出
+     *
+     * @param len 字节数
+     * @return 输出
+     */
+    byte[] generate(int len) {
+        byte[] out = new byte[len];
+        this.xor(out, 0, len);
+        return out;
+    }
+    
+    /**
+     * @return 到目前为止的输出是否全为0
+     */
+    boolean allZero() {
+        return this.allZero;
+    }
+    
+    /**
+     * Ha_ct = SM3(Z || ct)
+     */
+    private void nextBlock() {
+        this.sm3.copyState(this.base);
+        this.counter[0] = (byte) (this.ct >>> 24);
+        this.counter[1] = (byte) (this.ct >>> 16);
+        this.counter[2] = (byte) (this.ct >>> 8);
+        this.counter[3] = (byte) this.ct;
+        this.sm3.update(this.counter);
+        this.sm3.doFinal(this.block, 0);
+        this.ct++;
+        this.blockPos = 0;
+    }
+}
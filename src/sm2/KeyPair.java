@@ -2,9 +2,16 @@ package sm2;
 
 import sm2.support.ECPoint;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.security.SecureRandom;
 import java.util.ArrayList;
-import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
 
 import static sm2.Curve.*;
 
@@ -28,24 +35,116 @@ public class KeyPair {
     }
     
     /**
-     * 密钥对生成器，需要对密钥进行验证
+     * 每个线程一个SecureRandom，并行生成时各线程不竞争同一个随机数生成器的锁
+     */
+    private static final ThreadLocal<SecureRandom> RANDOM = ThreadLocal.withInitial(SecureRandom::new);
+    
+    /**
+     * 批量生成时每个任务生成的密钥对个数，同一任务内的公钥共用一次求逆
+     */
+    private static final int CHUNK = 256;
+    
+    /**
+     * 每个密钥对编码后的字节数，d || x || y各32字节
+     */
+    public static final int ENCODED_LENGTH = 96;
+    
+    /**
+     * 密钥对生成器。P = dG由d直接导出，SM2的余因子为1，不需要再验证P的阶
      *
      * @return 泛型数组
      */
     private static ArrayList<Object> generator() {
+        BigInteger d = privateKey();
+        ArrayList<Object> key = new ArrayList<>();
+        key.add(d);
+        key.add(ECPoint.multiplyG(d));
+        return key;
+    }
+    
+    /**
+     * 生成私钥d，1 <= d <= n - 2
+     *
+     * @return 私钥
+     */
+    private static BigInteger privateKey() {
+        SecureRandom random = RANDOM.get();
         BigInteger d;
-        ECPoint P;
-        ArrayList<Object> key;
         do {
-            do {
-                d = new BigInteger(p.bitLength(), new Random());
-            } while (d.compareTo(n.subtract(BigInteger.valueOf(2))) > 0 || d.compareTo(BigInteger.ZERO) == 0);
-            P = new ECPoint(gx, gy).multiply(d);
-            key = new ArrayList<>();
-            key.add(d);
-            key.add(P);
-        } while (!test(P));
-        return key;
+            d = new BigInteger(n.bitLength(), random);
+        } while (d.compareTo(n.subtract(BigInteger.valueOf(2))) > 0 || d.compareTo(BigInteger.ZERO) == 0);
+        return d;
+    }
+    
+    /**
+     * 批量生成密钥对，按CHUNK分段在ForkJoin公共池中并行生成，每段的公钥统一转换为仿射坐标
+     *
+     * @param count 密钥对个数
+     * @return 密钥对
+     */
+    public static KeyPair[] generate(int count) {
+        KeyPair[] keys = new KeyPair[count];
+        IntStream.range(0, (count + CHUNK - 1) / CHUNK).parallel().forEach(c -> {
+            int from = c * CHUNK, to = Math.min(count, from + CHUNK);
+            ECPoint[] points = new ECPoint[to - from];
+            BigInteger[] ds = new BigInteger[to - from];
+            for (int i = 0; i < points.length; i++) {
+                ds[i] = privateKey();
+                points[i] = ECPoint.multiplyG(ds[i]);
+            }
+            ECPoint.normalizeAll(points);
+            for (int i = 0; i < points.length; i++) {
+                keys[from + i] = new KeyPair(ds[i], points[i]);
+            }
+        });
+        return keys;
+    }
+    
+    /**
+     * 批量生成密钥对并写入通道，每个密钥对为d || x || y共96字节，均为32字节大端整数
+     *
+     * @param count 密钥对个数
+     * @param out   输出通道
+     * @throws IOException 写入失败
+     */
+    public static void generate(long count, WritableByteChannel out) throws IOException {
+        int batch = CHUNK * ForkJoinPool.getCommonPoolParallelism() * 4;
+        ByteBuffer buf = ByteBuffer.allocate(batch * ENCODED_LENGTH);
+        for (long done = 0; done < count; ) {
+            KeyPair[] keys = generate((int) Math.min(batch, count - done));
+            buf.clear();
+            for (KeyPair key : keys) {
+                key.encode(buf);
+            }
+            buf.flip();
+            while (buf.hasRemaining()) {
+                out.write(buf);
+            }
+            done += keys.length;
+        }
+    }
+    
+    /**
+     * 将密钥对编码为d || x || y
+     *
+     * @param buf 输出缓冲区，至少有96字节剩余
+     */
+    public void encode(ByteBuffer buf) {
+        put(buf, this.getPrivate());
+        put(buf, this.getPublic().getX());
+        put(buf, this.getPublic().getY());
+    }
+    
+    /**
+     * 写入32字节大端整数
+     */
+    private static void put(ByteBuffer buf, BigInteger x) {
+        byte[] bytes = x.toByteArray();
+        int len = Math.min(bytes.length, 32);
+        for (int i = len; i < 32; i++) {
+            buf.put((byte) 0);
+        }
+        buf.put(bytes, bytes.length - len, len);
     }
     
     /**
@@ -65,29 +164,33 @@ public class KeyPair {
     public ECPoint getPublic() {
         return (ECPoint) this.keypair.get(1);
     }
-    
-    /**
-     * 公钥的验证
-     *
-     * @param P 公钥点
-     * @return 验证结果
-     */
-    private static boolean test(ECPoint P) {
-        BigInteger x = P.getX(), y = P.getY();
-        if (ECPoint.isO(P)) {
-            return false;
-        } else if (x.compareTo(p) > 0 || y.compareTo(p) > 0) {
-            return false;
-        } else if (y.pow(2).mod(p).compareTo(x.pow(3).add(x.multiply(a)).add(b).mod(p)) != 0) {
-            return false;
-        } else return ECPoint.isO(P.multiply(n));
-    }
 }
 
 class KeyPairTest {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
         KeyPair key = new KeyPair();
         System.out.println(key.getPrivate().toString(16));
         System.out.println(key.getPublic().toString(16));
+        
+        KeyPair[] keys = KeyPair.generate(1000);
+        // 用变基点的NAFw乘法对照，不经过生成时使用的G的固定表
+        ECPoint G = new ECPoint(gx, gy);
+        int bad = 0;
+        for (KeyPair k : keys) {
+            ECPoint P = k.getPublic();
+            BigInteger x = P.getX(), y = P.getY();
+            boolean onCurve = y.multiply(y).subtract(x.pow(3).add(a.multiply(x)).add(b)).mod(p).signum() == 0;
+            bad += onCurve && P.equals(G.multiply(k.getPrivate())) ? 0 : 1;
+        }
+        System.out.println("generate(1000) bad=" + bad);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        KeyPair.generate(3000, Channels.newChannel(bytes));
+        System.out.println("streamed bytes: " + bytes.size());
+        for (int r = 0; r < 5; r++) {
+            long t0 = System.nanoTime();
+            KeyPair.generate(20000);
+            long t1 = System.nanoTime();
+            System.out.printf("generate: %.0f keys/s%n", 20000 / ((t1 - t0) / 1e9));
+        }
     }
 }
@@ -0,0 +1,129 @@
+package sm2;
+
+import sm3.HmacSM3;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import static sm2.Curve.n;
+
+/**
+ * 签名随机数k的来源
+ * <p>
+ * 同一次签名中k不满足要求(r = 0, r + k = n或s = 0)时，会以递增的attempt再次调用，
+ * 实现必须在不同的attempt下给出不同的k。
+ */
+public interface NonceGenerator {
+    
+    /**
+     * 生成签名随机数
+     *
+     * @param d       私钥
+     * @param e       杂凑值e mod n，32字节大端
+     * @param attempt 本次签名中的第几次尝试，从0开始
+     * @return 随机数k，1 <= k <= n - 1
+     */
+    BigInteger generate(BigInteger d, byte[] e, int attempt);
+    
+    /**
+     * 每个线程一个SecureRandom的随机数来源，线程之间不竞争同一个随机数生成器
+     *
+     * @return 随机数来源
+     */
+    static NonceGenerator random() {
+        return RandomNonce.INSTANCE;
+    }
+    
+    /**
+     * 确定性随机数来源，按RFC 6979的HMAC-DRBG以HMAC-SM3由私钥和杂凑值导出k，
+     * 同一私钥对同一消息的签名总是相同
+     *
+     * @return 随机数来源
+     */
+    static NonceGenerator deterministic() {
+        return DeterministicNonce.INSTANCE;
+    }
+}
+
+/**
+ * 线程本地SecureRandom
+ */
+final class RandomNonce implements NonceGenerator {
+    
+    static final RandomNonce INSTANCE = new RandomNonce();
+    
+    private static final ThreadLocal<SecureRandom> RANDOM = ThreadLocal.withInitial(SecureRandom::new);
+    
+    private RandomNonce() {
+    }
+    
+    @Override
+    public BigInteger generate(BigInteger d, byte[] e, int attempt) {
+        SecureRandom random = RANDOM.get();
+        BigInteger k;
+        do {
+            k = new BigInteger(n.bitLength(), random);
+        } while (k.signum() == 0 || k.compareTo(n) >= 0);
+        return k;
+    }
+}
+
+/**
+ * RFC 6979第3.2节，杂凑函数换为SM3。qlen = hlen = 256，每轮的V即为一个候选值
+ */
+final class DeterministicNonce implements NonceGenerator {
+    
+    static final DeterministicNonce INSTANCE = new DeterministicNonce();
+    
+    private static final int LEN = 32;
+    
+    private DeterministicNonce() {
+    }
+    
+    @Override
+    public BigInteger generate(BigInteger d, byte[] e, int attempt) {
+        byte[] x = toBytes(d);
+        byte[] V = new byte[LEN], K = new byte[LEN];
+        Arrays.fill(V, (byte) 0x01);
+        HmacSM3 hmac = new HmacSM3();
+        // K = HMAC_K(V || 0x00 || x || h1), V = HMAC_K(V)，再以0x01重复一次
+        for (byte b = 0; b <= 1; b++) {
+            hmac.init(K);
+            hmac.update(V);
+            hmac.update(b);
+            hmac.update(x);
+            hmac.update(e);
+            K = hmac.doFinal();
+            hmac.init(K);
+            hmac.update(V);
+            V = hmac.doFinal();
+        }
+        for (int i = 0; ; ) {
+            hmac.update(V);
+            V = hmac.doFinal();
+            BigInteger k = new BigInteger(1, V);
+            if (k.signum() != 0 && k.compareTo(n) < 0 && i++ == attempt) {
+                return k;
+            }
+            // K = HMAC_K(V || 0x00), V = HMAC_K(V)
+            hmac.update(V);
+            hmac.update((byte) 0x00);
+            K = hmac.doFinal();
+            hmac.init(K);
+            hmac.update(V);
+            V = hmac.doFinal();
+        }
+    }
+    
+    /**
+     * int2octets，32字节大端
+     */
+    private static byte[] toBytes(BigInteger x) {
+        byte[] bytes = x.toByteArray();
+        byte[] out = new byte[LEN];
+        int len = Math.min(bytes.length, LEN);
+        System.arraycopy(bytes, bytes.length - len, out, LEN - len, len);
+        return out;
+    }
+}
@@ -3,21 +3,53 @@ package sm2;
 
 import sm2.support.Convert;
 import sm2.support.ECPoint;
+import sm2.support.Fn;
 import sm3.SM3;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Random;
+import java.util.Arrays;
 
 import static sm2.Curve.*;
 
 public class SM2 {
     
+    /**
+     * 流式签名与验证时每次读取的字节数，内存占用与消息长度无关
+     */
+    private static final int CHUNK = 64 << 10;
+    
     private byte[] za;
     private BigInteger d;
     private ECPoint P;
     
+    /**
+     * 已吸收ZA的SM3状态，每次签名和验证复制该状态后只需继续吸收消息M
+     */
+    private SM3 zaDigest;
+    
+    /**
+     * 为true时签名中的kG使用只计算x坐标的Montgomery阶梯，阶梯的运算序列不随k的各位变化，但比查表慢；并非严格的常数时间实现
+     */
+    private boolean ladder;
+    
+    /**
+     * 私钥d与(1 + d)^-1 mod n的Montgomery形式，签名时与普通形式的数相乘即得普通形式的积
+     */
+    private int[] dMont;
+    private int[] dInvMont;
+    
+    /**
+     * 签名随机数k的来源
+     */
+    private NonceGenerator nonces = NonceGenerator.random();
+    
     /**
      * 利用IDA和密钥对，实现SM2的初始化
      *
@@ -33,12 +65,16 @@ public class SM2 {
         } catch (Exception e) {
             this.za = null;
         }
+        this.absorbZA();
+        this.precompute();
     }
     
     public SM2(byte[] za, KeyPair keypair) {
         this.d = keypair.getPrivate();
         this.P = keypair.getPublic();
         this.za = za;
+        this.absorbZA();
+        this.precompute();
     }
     
     public SM2(String IDA, ECPoint publickey) {
@@ -50,12 +86,16 @@ public class SM2 {
         } catch (Exception e) {
             this.za = null;
         }
+        this.absorbZA();
+        this.precompute();
     }
     
     public SM2(byte[] za, ECPoint publickey) {
         this.d = null;
         this.P = publickey;
         this.za = za;
+        this.absorbZA();
+        this.precompute();
     }
     
     /**
@@ -72,6 +112,104 @@ public class SM2 {
                 gx.toByteArray(), gy.toByteArray(), this.P.getX().toByteArray(), this.P.getY().toByteArray()));
     }
     
+    /**
+     * 将ZA吸收进SM3状态，作为所有待签名消息的公共前缀
+     */
+    private void absorbZA() {
+        if (this.za == null) {
+            this.zaDigest = null;
+            return;
+        }
+        this.zaDigest = new SM3();
+        this.zaDigest.update(this.za);
+    }
+    
+    /**
+     * 预计算签名用到的私钥常数，只有公钥时不做
+     */
+    private void precompute() {
+        if (this.d == null) {
+            return;
+        }
+        Fn f = new Fn();
+        this.dMont = new int[8];
+        this.dInvMont = new int[8];
+        f.toMont(this.dMont, Fn.fromBigInteger(this.d));
+        f.toMont(this.dInvMont, Fn.fromBigInteger(this.d.add(BigInteger.ONE)));
+        f.inv(this.dInvMont, this.dInvMont);
+    }
+    
+    /**
+     * 计算e=H(ZA||M) mod n，从已吸收ZA的状态继续，不再拼接ZA与M
+     *
+     * @param M   消息
+     * @param off 消息的起始位置
+     * @param len 消息长度
+     * @param e   杂凑值e的Fn表示
+     */
+    private void digest(byte[] M, int off, int len, int[] e) {
+        SM3 sm3 = this.zaDigest.copy();
+        sm3.update(M, off, len);
+        Fn.decodeReduce(e, sm3.doFinal());
+    }
+    
+    /**
+     * 计算e=H(ZA||M) mod n
+     *
+     * @param M 消息，读取全部剩余字节
+     * @param e 杂凑值e的Fn表示
+     */
+    private void digest(ByteBuffer M, int[] e) {
+        SM3 sm3 = this.zaDigest.copy();
+        sm3.update(M);
+        Fn.decodeReduce(e, sm3.doFinal());
+    }
+    
+    /**
+     * 计算e=H(ZA||M) mod n，从已吸收ZA的状态继续，消息按CHUNK字节分段读入
+     *
+     * @param M 消息，读取到结束
+     * @param e 杂凑值e的Fn表示
+     * @throws IOException 读取失败
+     */
+    private void digest(InputStream M, int[] e) throws IOException {
+        SM3 sm3 = this.zaDigest.copy();
+        byte[] buf = new byte[CHUNK];
+        int len;
+        while ((len = M.read(buf)) >= 0) {
+            sm3.update(buf, 0, len);
+        }
+        Fn.decodeReduce(e, sm3.doFinal());
+    }
+    
+    /**
+     * 计算e=H(ZA||M) mod n。FileChannel从当前位置到文件末尾按映射窗口读入，
+     * 其他通道按CHUNK字节分段读入
+     *
+     * @param M 消息，读取到结束，FileChannel的位置随后移到文件末尾
+     * @param e 杂凑值e的Fn表示
+     * @throws IOException 读取失败
+     */
+    private void digest(ReadableByteChannel M, int[] e) throws IOException {
+        SM3 sm3 = this.zaDigest.copy();
+        if (M instanceof FileChannel) {
+            FileChannel file = (FileChannel) M;
+            long position = file.position(), size = file.size();
+            if (position < size) {
+                sm3.update(file, position, size - position);
+                file.position(size);
+            }
+        } else {
+            ByteBuffer buf = ByteBuffer.allocate(CHUNK);
+            while (M.read(buf) >= 0) {
+                buf.flip();
+                sm3.update(buf);
+                buf.clear();
+            }
+        }
+        Fn.decodeReduce(e, sm3.doFinal());
+    }
+    
     public static byte[] ZA(String IDA, ECPoint P) throws Exception {
         byte[] IDAbytes = IDA.getBytes(StandardCharsets.US_ASCII);
         int entlenA = IDAbytes.length * 8;
@@ -99,6 +237,24 @@ public class SM2 {
         return this.za;
     }
     
+    /**
+     * 设置签名时kG的计算方式
+     *
+     * @param ladder true为co-Z Montgomery阶梯，false为基点预计算表(默认)
+     */
+    public void setLadder(boolean ladder) {
+        this.ladder = ladder;
+    }
+    
+    /**
+     * 设置签名随机数k的来源
+     *
+     * @param nonces NonceGenerator.random()(默认)或NonceGenerator.deterministic()等
+     */
+    public void setNonceGenerator(NonceGenerator nonces) {
+        this.nonces = nonces;
+    }
+    
     /**
      * 签名函数
      *
@@ -106,30 +262,105 @@ public class SM2 {
      * @return 签名的列表(r, s)
      */
     public ArrayList<byte[]> sign(byte[] M) {
-        byte[] _M;
         ArrayList<byte[]> SIGN = new ArrayList<>();
-        BigInteger e;
+        int[] e = new int[8], r = new int[8], s = new int[8];
         try {
-            _M = Convert.ByteArrayLink(this.za, M);
-            e = new BigInteger(1, SM3.hash(_M));
+            this.digest(M, 0, M.length, e);
         } catch (Exception ex) {
             System.out.println("sign error");
             return null;
         }
-        BigInteger k, r, x, s;
-        ECPoint G = new ECPoint(gx, gy);
+        this.sign(e, r, s);
+        SIGN.add(Fn.toBigInteger(r).toByteArray());
+        SIGN.add(Fn.toBigInteger(s).toByteArray());
+        return SIGN;
+    }
+    
+    /**
+     * 签名函数，签名为定长的r || s
+     *
+     * @param M      待签名消息
+     * @param off    消息的起始位置
+     * @param len    消息长度
+     * @param sig    签名输出
+     * @param sigOff 签名的起始位置，写入64字节
+     */
+    public void sign(byte[] M, int off, int len, byte[] sig, int sigOff) {
+        int[] e = new int[8], r = new int[8], s = new int[8];
+        this.digest(M, off, len, e);
+        this.sign(e, r, s);
+        Fn.encode(r, sig, sigOff);
+        Fn.encode(s, sig, sigOff + 32);
+    }
+    
+    /**
+     * 签名函数，签名为定长的r || s
+     *
+     * @param M   待签名消息，读取全部剩余字节
+     * @param sig 签名输出，从当前位置写入64字节
+     */
+    public void sign(ByteBuffer M, ByteBuffer sig) {
+        int[] e = new int[8], r = new int[8], s = new int[8];
+        this.digest(M, e);
+        this.sign(e, r, s);
+        Fn.encode(r, sig);
+        Fn.encode(s, sig);
+    }
+    
+    /**
+     * 流式签名，签名为定长的r || s
+     *
+     * @param M      待签名消息，读取到结束
+     * @param sig    签名输出
+     * @param sigOff 签名的起始位置，写入64字节
+     * @throws IOException 读取失败
+     */
+    public void sign(InputStream M, byte[] sig, int sigOff) throws IOException {
+        int[] e = new int[8], r = new int[8], s = new int[8];
+        this.digest(M, e);
+        this.sign(e, r, s);
+        Fn.encode(r, sig, sigOff);
+        Fn.encode(s, sig, sigOff + 32);
+    }
+    
+    /**
+     * 流式签名，签名为定长的r || s。FileChannel经内存映射读入，不经过堆上的缓冲区
+     *
+     * @param M      待签名消息，从当前位置读取到结束
+     * @param sig    签名输出
+     * @param sigOff 签名的起始位置，写入64字节
+     * @throws IOException 读取失败
+     */
+    public void sign(ReadableByteChannel M, byte[] sig, int sigOff) throws IOException {
+        int[] e = new int[8], r = new int[8], s = new int[8];
+        this.digest(M, e);
+        this.sign(e, r, s);
+        Fn.encode(r, sig, sigOff);
+        Fn.encode(s, sig, sigOff + 32);
+    }
+    
+    /**
+     * 由杂凑值e计算签名(r, s)
+     */
+    private void sign(int[] e, int[] r, int[] s) {
+        byte[] eBytes = new byte[32];
+        Fn.encode(e, eBytes, 0);
+        Fn f = new Fn();
+        int[] k;
+        int attempt = 0;
         do {
             do {
-                k = new BigInteger(n.bitLength(), new Random());
+                k = Fn.fromBigInteger(this.nonces.generate(this.d, eBytes, attempt++));
                 //k = new BigInteger("6CB28D99385C175C94F94E934817663FC176D925DD72B727260DBAAE1FB2F96F", 16);
-                x = G.multiply(k).getX();
-                r = e.add(x).mod(n);
-            } while (r.compareTo(BigInteger.ZERO) == 0 || r.add(k).compareTo(n) == 0);
-            s = this.d.add(BigInteger.ONE).modInverse(n).multiply(k.subtract(r.multiply(this.d))).mod(n);
-        } while (s.compareTo(BigInteger.ZERO) == 0);
-        SIGN.add(r.toByteArray());
-        SIGN.add(s.toByteArray());
-        return SIGN;
+                BigInteger x = this.ladder ? ECPoint.multiplyGX(Fn.toBigInteger(k)) : ECPoint.multiplyG(Fn.toBigInteger(k)).getX();
+                Fn.add(r, e, Fn.fromBigInteger(x));
+                Fn.add(s, r, k);
+            } while (Fn.isZero(r) || Fn.isZero(s));
+            // s = (1 + d)^-1 * (k - r * d) mod n
+            f.mul(s, r, this.dMont);
+            Fn.sub(s, k, s);
+            f.mul(s, this.dInvMont, s);
+        } while (Fn.isZero(s));
     }
     
     /**
@@ -140,34 +371,112 @@ public class SM2 {
      * @return 验证结果
      */
     public boolean verify(byte[] M, ArrayList<byte[]> sign) {
-        BigInteger r = new BigInteger(1, sign.get(0));
-        BigInteger s = new BigInteger(1, sign.get(1));
-        if (s.compareTo(n) >= 0 || s.compareTo(BigInteger.ZERO) == 0) {
+        int[] r = new int[8], s = new int[8];
+        if (!Fn.decode(s, sign.get(1)) || !Fn.decode(r, sign.get(0))) {
             return false;
         }
-        if (r.compareTo(n) >= 0 || r.compareTo(BigInteger.ZERO) == 0) {
-            return false;
-        }
-        byte[] _M;
-        BigInteger e;
+        int[] e = new int[8];
         try {
-            _M = Convert.ByteArrayLink(this.za, M);
-            e = new BigInteger(1, SM3.hash(_M));
+            this.digest(M, 0, M.length, e);
         } catch (Exception ex) {
             System.out.println("verify error");
             return false;
         }
-        BigInteger t = r.add(s).mod(n);
-        if (t.compareTo(BigInteger.ZERO) == 0) {
+        return this.verify(e, r, s);
+    }
+    
+    /**
+     * 验证函数，签名为定长的r || s
+     *
+     * @param M      待验证消息
+     * @param off    消息的起始位置
+     * @param len    消息长度
+     * @param sig    签名
+     * @param sigOff 签名的起始位置，读取64字节
+     * @return 验证结果
+     */
+    public boolean verify(byte[] M, int off, int len, byte[] sig, int sigOff) {
+        int[] e = new int[8], r = new int[8], s = new int[8];
+        if (!Fn.decode(r, sig, sigOff) || !Fn.decode(s, sig, sigOff + 32)) {
+            return false;
+        }
+        this.digest(M, off, len, e);
+        return this.verify(e, r, s);
+    }
+    
+    /**
+     * 验证函数，签名为定长的r || s
+     *
+     * @param M   待验证消息，读取全部剩余字节
+     * @param sig 签名，从当前位置读取64字节
+     * @return 验证结果
+     */
+    public boolean verify(ByteBuffer M, ByteBuffer sig) {
+        int[] e = new int[8], r = new int[8], s = new int[8];
+        boolean valid = Fn.decode(r, sig) & Fn.decode(s, sig);
+        if (!valid) {
+            return false;
+        }
+        this.digest(M, e);
+        return this.verify(e, r, s);
+    }
+    
+    /**
+     * 流式验证，签名为定长的r || s
+     *
+     * @param M      待验证消息，读取到结束；签名格式错误时不读取
+     * @param sig    签名
+     * @param sigOff 签名的起始位置，读取64字节
+     * @return 验证结果
+     * @throws IOException 读取失败
+     */
+    public boolean verify(InputStream M, byte[] sig, int sigOff) throws IOException {
+        int[] e = new int[8], r = new int[8], s = new int[8];
+        if (!Fn.decode(r, sig, sigOff) || !Fn.decode(s, sig, sigOff + 32)) {
             return false;
         }
-        ECPoint point = new ECPoint(gx, gy).multiply(s).plus(this.P.multiply(t));
-        return e.add(point.getX()).mod(n).compareTo(r) == 0;
+        this.digest(M, e);
+        return this.verify(e, r, s);
+    }
+    
+    /**
+     * 流式验证，签名为定长的r || s。FileChannel经内存映射读入，不经过堆上的缓冲区
+     *
+     * @param M      待验证消息，从当前位置读取到结束；签名格式错误时不读取
+     * @param sig    签名
+     * @param sigOff 签名的起始位置，读取64字节
+     * @return 验证结果
+     * @throws IOException 读取失败
+     */
+    public boolean verify(ReadableByteChannel M, byte[] sig, int sigOff) throws IOException {
+        int[] e = new int[8], r = new int[8], s = new int[8];
+        if (!Fn.decode(r, sig, sigOff) || !Fn.decode(s, sig, sigOff + 32)) {
+            return false;
+        }
+        this.digest(M, e);
+        return this.verify(e, r, s);
+    }
+    
+    /**
+     * 由杂凑值e验证签名(r, s)，r与s已小于n
+     */
+    private boolean verify(int[] e, int[] r, int[] s) {
+        if (Fn.isZero(r) || Fn.isZero(s)) {
+            return false;
+        }
+        int[] t = new int[8];
+        Fn.add(t, r, s);
+        if (Fn.isZero(t)) {
+            return false;
+        }
+        ECPoint point = ECPoint.multiplyGPlus(s, t, this.P);
+        Fn.add(e, e, Fn.fromBigInteger(point.getX()));
+        return Fn.equals(e, r);
     }
 }
 
 class SM2Test {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
         /*
         BigInteger dA = new BigInteger("128B2FA8BD433C6C068C8D803DFF79792A519A55171B1B650C23661D15897263", 16);
         BigInteger x = new BigInteger("0AE4C7798AA0F119471BEE11825BE46202BB79E2A5844495E97C04FF4DF2548A", 16);
@@ -200,5 +509,47 @@ class SM2Test {
         System.out.println(">>> verify");
         System.out.println("result: " + s.verify(M, SIGN));
         System.out.println("another msg's verify: " + s.verify(_M, SIGN));
+        System.out.println("table cache: " + ECPoint.tableCache());
+        
+        s = new SM2(IDA, key);
+        s.setLadder(true);
+        SIGN = s.sign(M);
+        System.out.println("ladder sign's verify: " + new SM2(IDA, key.getPublic()).verify(M, SIGN));
+        
+        s = new SM2(IDA, key);
+        s.setNonceGenerator(NonceGenerator.deterministic());
+        SIGN = s.sign(M);
+        System.out.println("deterministic sign's verify: " + new SM2(IDA, key.getPublic()).verify(M, SIGN)
+                + ", repeatable: " + Arrays.equals(SIGN.get(1), s.sign(M).get(1)));
+        
+        // 流式签名与一次性签名的杂凑值相同，确定性随机数下签名也相同
+        int chunk = 64 << 10;
+        byte[] big = new byte[3 * chunk + 17];
+        new java.util.Random(1).nextBytes(big);
+        java.nio.file.Path file = java.nio.file.Files.createTempFile("sm2", ".bin");
+        java.nio.file.Files.write(file, big);
+        SM2 v = new SM2(IDA, key.getPublic());
+        byte[] sig = new byte[64], sig2 = new byte[64], sig3 = new byte[64], sig4 = new byte[64];
+        s.sign(big, 0, big.length, sig, 0);
+        s.sign(new java.io.ByteArrayInputStream(big), sig2, 0);
+        try (FileChannel channel = FileChannel.open(file)) {
+            s.sign(channel, sig3, 0);
+        }
+        s.sign(java.nio.channels.Channels.newChannel(new java.io.ByteArrayInputStream(big)), sig4, 0);
+        boolean same = Arrays.equals(sig, sig2) && Arrays.equals(sig, sig3) && Arrays.equals(sig, sig4);
+        boolean streamVerify = v.verify(new java.io.ByteArrayInputStream(big), sig, 0);
+        boolean fileVerify;
+        try (FileChannel channel = FileChannel.open(file)) {
+            // 从中间位置开始只验证剩余部分
+            channel.position(chunk);
+            s.sign(channel, sig3, 0);
+            channel.position(chunk);
+            fileVerify = v.verify(channel, sig3, 0) && v.verify(big, chunk, big.length - chunk, sig3, 0);
+        }
+        big[5] ^= 1;
+        boolean tampered = v.verify(new java.io.ByteArrayInputStream(big), sig, 0);
+        java.nio.file.Files.delete(file);
+        System.out.println("stream sign same as array: " + same + ", stream verify: " + streamVerify
+                + ", file verify from position: " + fileVerify + ", tampered rejected: " + !tampered);
     }
 }
@@ -0,0 +1,485 @@
+package sm2;
+
+import sm2.support.ECPoint;
+import sm2.support.Fp;
+import sm2.support.PointCodec;
+import sm3.SM3;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import static sm2.Curve.*;
+
+/**
+ * SM2公钥加密算法(GB/T 32918.4)
+ * <p>
+ * 密文为C1 || C3 || C2或C1 || C2 || C3，其中C1 = kG为65字节的未压缩点，
+ * C2 = M xor KDF(x2 || y2, klen)，C3 = SM3(x2 || M || y2)，(x2, y2) = kP。
+ * KDF以32字节为一块逐块生成：x2 || y2恰为一个SM3分组，只压缩一次，
+ * 之后每块只需从该状态继续吸收4字节的计数器，因此流式加解密时明文与密钥流都不必整体放在内存中。
+ * <p>
+ * 流式解密在C3校验之前就会输出明文，校验失败时抛出异常，调用者必须丢弃已输出的内容。
+ */
+public class SM2Cipher {
+    
+    /**
+     * 密文各部分的排列顺序
+     */
+    public enum Mode {
+        /**
+         * GB/T 32918.4-2016的顺序
+         */
+        C1C3C2,
+        /**
+         * 早期版本的顺序
+         */
+        C1C2C3
+    }
+    
+    /**
+     * C1(未压缩点)的字节数
+     */
+    public static final int C1_LENGTH = 65;
+    
+    /**
+     * C3的字节数
+     */
+    public static final int C3_LENGTH = 32;
+    
+    private static final int CHUNK = 8192;
+    private static final SecureRandom RANDOM = new SecureRandom();
+    
+    private final ECPoint P;
+    private final BigInteger d;
+    private final Mode mode;
+    
+    /**
+     * 只用于加密
+     *
+     * @param publickey 接收者公钥
+     * @param mode      密文顺序
+     */
+    public SM2Cipher(ECPoint publickey, Mode mode) {
+        this.P = publickey;
+        this.d = null;
+        this.mode = mode;
+    }
+    
+    /**
+     * 用于加密和解密
+     *
+     * @param keypair 接收者密钥对
+     * @param mode    密文顺序
+     */
+    public SM2Cipher(KeyPair keypair, Mode mode) {
+        this.P = keypair.getPublic();
+        this.d = keypair.getPrivate();
+        this.mode = mode;
+    }
+    
+    /**
+     * 加密
+     *
+     * @param M 明文
+     * @return 密文
+     */
+    public byte[] encrypt(byte[] M) {
+        byte[] C = new byte[C1_LENGTH + C3_LENGTH + M.length];
+        int c2Off = this.mode == Mode.C1C3C2 ? C1_LENGTH + C3_LENGTH : C1_LENGTH;
+        int c3Off = this.mode == Mode.C1C3C2 ? C1_LENGTH : C1_LENGTH + M.length;
+        Session session = this.start(M, M.length, C, c2Off);
+        System.arraycopy(session.c1, 0, C, 0, C1_LENGTH);
+        session.absorb(M, 0, M.length);
+        System.arraycopy(session.c3(), 0, C, c3Off, C3_LENGTH);
+        return C;
+    }
+    
+    /**
+     * 解密
+     *
+     * @param C 密文
+     * @return 明文
+     * @throws GeneralSecurityException 密文格式错误或C3校验失败
+     */
+    public byte[] decrypt(byte[] C) throws GeneralSecurityException {
+        if (C.length < C1_LENGTH + C3_LENGTH) {
+            throw new GeneralSecurityException("invalid ciphertext.");
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(C.length - C1_LENGTH - C3_LENGTH);
+        try {
+            this.decrypt(new ByteArrayInputStream(C), out);
+        } catch (IOException e) {
+            throw new GeneralSecurityException("invalid ciphertext.", e);
+        }
+        return out.toByteArray();
+    }
+    
+    /**
+     * 流式加密，读取in直到结束
+     * <p>
+     * C3依赖全部明文，C1C3C2顺序下要先写出C3，因此只能用于可定位的输出通道，见另一个重载
+     *
+     * @param in  明文
+     * @param out 密文
+     * @throws IOException                   读写失败
+     * @throws UnsupportedOperationException 模式为C1C3C2
+     */
+    public void encrypt(InputStream in, OutputStream out) throws IOException {
+        if (this.mode == Mode.C1C3C2) {
+            throw new UnsupportedOperationException("C1C3C2 needs a seekable output.");
+        }
+        byte[] buf = new byte[CHUNK], c2 = new byte[CHUNK];
+        int len = readUpTo(in, buf);
+        Session session = this.start(buf, len, c2, 0);
+        out.write(session.c1);
+        session.absorb(buf, 0, len);
+        out.write(c2, 0, len);
+        session.encryptRest(in, out, buf);
+        out.write(session.c3());
+    }
+    
+    /**
+     * 流式加密，两种模式都可用：C1C3C2时先为C3留出位置，写完C2后再回到该位置写入C3
+     *
+     * @param in  明文
+     * @param out 密文，从当前位置开始写入
+     * @throws IOException 读写失败
+     */
+    public void encrypt(ReadableByteChannel in, SeekableByteChannel out) throws IOException {
+        if (this.mode == Mode.C1C2C3) {
+            this.encrypt(Channels.newInputStream(in), Channels.newOutputStream(out));
+            return;
+        }
+        InputStream input = Channels.newInputStream(in);
+        OutputStream output = Channels.newOutputStream(out);
+        byte[] buf = new byte[CHUNK], c2 = new byte[CHUNK];
+        int len = readUpTo(input, buf);
+        Session session = this.start(buf, len, c2, 0);
+        output.write(session.c1);
+        long c3Pos = out.position();
+        out.position(c3Pos + C3_LENGTH);
+        session.absorb(buf, 0, len);
+        output.write(c2, 0, len);
+        session.encryptRest(input, output, buf);
+        long end = out.position();
+        out.position(c3Pos);
+        output.write(session.c3());
+        out.position(end);
+    }
+    
+    /**
+     * 流式解密，读取in直到结束
+     *
+     * @param in  密文
+     * @param out 明文
+     * @throws IOException              读写失败
+     * @throws GeneralSecurityException 密文格式错误或C3校验失败，此时out中已写出的内容无效
+     */
+    public void decrypt(InputStream in, OutputStream out) throws IOException, GeneralSecurityException {
+        if (this.d == null) {
+            throw new IllegalStateException("no private key.");
+        }
+        byte[] c1 = new byte[C1_LENGTH];
+        readFully(in, c1, C1_LENGTH);
+        ECPoint C1 = decodePoint(c1);
+        Session session = new Session(C1.multiply(this.d));
+        byte[] c3 = new byte[C3_LENGTH];
+        if (this.mode == Mode.C1C3C2) {
+            readFully(in, c3, C3_LENGTH);
+            session.decryptRest(in, out);
+        } else {
+            session.xorHoldBack(in, out, c3);
+        }
+        // 合法的密文不会对应全为0的密钥流
+        if (session.length > 0 && session.kdf.allZero() || !MessageDigest.isEqual(c3, session.c3())) {
+            throw new GeneralSecurityException("C3 mismatch.");
+        }
+    }
+    
+    /**
+     * 流式解密
+     *
+     * @param in  密文
+     * @param out 明文
+     * @throws IOException              读写失败
+     * @throws GeneralSecurityException 密文格式错误或C3校验失败，此时out中已写出的内容无效
+     */
+    public void decrypt(ReadableByteChannel in, WritableByteChannel out) throws IOException, GeneralSecurityException {
+        this.decrypt(Channels.newInputStream(in), Channels.newOutputStream(out));
+    }
+    
+    /**
+     * 选取随机数k，计算C1与(x2, y2)，并加密第一段明文。
+     * 按标准，密钥流全为0时要重新选取k；第一段之后的密钥流全为0的概率可以忽略
+     *
+     * @param M     第一段明文
+     * @param len   第一段的长度
+     * @param c2    第一段密文的输出
+     * @param c2Off 输出的起始位置
+     * @return 加密状态
+     */
+    private Session start(byte[] M, int len, byte[] c2, int c2Off) {
+        if (ECPoint.isO(this.P)) {
+            throw new IllegalStateException("public key is the point at infinity.");
+        }
+        Session session;
+        do {
+            BigInteger k;
+            do {
+                k = new BigInteger(n.bitLength(), RANDOM);
+            } while (k.signum() == 0 || k.compareTo(n) >= 0);
+            session = new Session(this.P.multiply(k));
+            session.c1 = encodePoint(ECPoint.multiplyG(k));
+            System.arraycopy(M, 0, c2, c2Off, len);
+            session.xor(c2, c2Off, len);
+        } while (len > 0 && session.kdf.allZero());
+        return session;
+    }
+    
+    /**
+     * 一次加密或解密的状态：KDF的计数器与密钥流块，以及C3的杂凑状态
+     */
+    private static final class Session {
+        private final byte[] x2 = new byte[32];
+        private final byte[] y2 = new byte[32];
+        private final KDF kdf;
+        private long length;
+        private final SM3 c3Digest = new SM3();
+        private byte[] c1;
+        
+        Session(ECPoint S) {
+            if (ECPoint.isO(S)) {
+                throw new IllegalStateException("kP is the point at infinity.");
+            }
+            Fp.encode(Fp.fromBigInteger(S.getX()), this.x2, 0);
+            Fp.encode(Fp.fromBigInteger(S.getY()), this.y2, 0);
+            // x2 || y2恰为一个SM3分组，只压缩一次
+            this.kdf = new KDF(this.x2, this.y2);
+            this.c3Digest.update(this.x2);
+        }
+        
+        void xor(byte[] buf, int off, int len) {
+            this.kdf.xor(buf, off, len);
+        }
+        
+        /**
+         * 逐块读取明文直到结束，吸收进C3后与密钥流异或并写出
+         */
+        void encryptRest(InputStream in, OutputStream out, byte[] buf) throws IOException {
+            int len;
+            while ((len = in.read(buf)) > 0) {
+                this.absorb(buf, 0, len);
+                this.xor(buf, 0, len);
+                out.write(buf, 0, len);
+            }
+        }
+        
+        /**
+         * 逐块读取密文直到结束，与密钥流异或后吸收进C3并写出
+         */
+        void decryptRest(InputStream in, OutputStream out) throws IOException {
+            byte[] buf = new byte[CHUNK];
+            int len;
+            while ((len = in.read(buf)) > 0) {
+                this.xor(buf, 0, len);
+                this.absorb(buf, 0, len);
+                out.write(buf, 0, len);
+            }
+        }
+        
+        /**
+         * 解密C1C2C3：输入的最后32字节为C3，始终保留读到的最后32字节不做处理
+         *
+         * @param c3 接收最后32字节
+         */
+        void xorHoldBack(InputStream in, OutputStream out, byte[] c3) throws IOException, GeneralSecurityException {
+            byte[] buf = new byte[CHUNK + C3_LENGTH];
+            int held = 0;
+            int len;
+            while ((len = in.read(buf, held, CHUNK)) > 0) {
+                held += len;
+                int ready = held - C3_LENGTH;
+                if (ready > 0) {
+                    this.xor(buf, 0, ready);
+                    this.absorb(buf, 0, ready);
+                    out.write(buf, 0, ready);
+                    System.arraycopy(buf, ready, buf, 0, C3_LENGTH);
+                    held = C3_LENGTH;
+                }
+            }
+            if (held < C3_LENGTH) {
+                throw new GeneralSecurityException("invalid ciphertext.");
+            }
+            System.arraycopy(buf, 0, c3, 0, C3_LENGTH);
+        }
+        
+        /**
+         * 明文吸收进C3
+         */
+        void absorb(byte[] buf, int off, int len) {
+            this.c3Digest.update(buf, off, len);
+            this.length += len;
+        }
+        
+        byte[] c3() {
+            this.c3Digest.update(this.y2);
+            return this.c3Digest.doFinal();
+        }
+    }
+    
+    /**
+     * 编码为04 || x || y
+     */
+    private static byte[] encodePoint(ECPoint point) {
+        byte[] out = new byte[C1_LENGTH];
+        out[0] = 0x04;
+        Fp.encode(Fp.fromBigInteger(point.getX()), out, 1);
+        Fp.encode(Fp.fromBigInteger(point.getY()), out, 33);
+        return out;
+    }
+    
+    /**
+     * 解码未压缩点并检查其在曲线上
+     */
+    private static ECPoint decodePoint(byte[] in) throws GeneralSecurityException {
+        if (in[0] != 0x04) {
+            throw new GeneralSecurityException("invalid C1.");
+        }
+        try {
+            return PointCodec.decode(in);
+        } catch (IllegalArgumentException e) {
+            throw new GeneralSecurityException("invalid C1.", e);
+        }
+    }
+    
+    /**
+     * 读取直到buf填满或输入结束
+     *
+     * @return 读到的字节数
+     */
+    private static int readUpTo(InputStream in, byte[] buf) throws IOException {
+        int off = 0, r;
+        while (off < buf.length && (r = in.read(buf, off, buf.length - off)) > 0) {
+            off += r;
+        }
+        return off;
+    }
+    
+    private static void readFully(InputStream in, byte[] buf, int len) throws IOException {
+        int off = 0;
+        while (off < len) {
+            int r = in.read(buf, off, len - off);
+            if (r < 0) {
+                throw new EOFException();
+            }
+            off += r;
+        }
+    }
+}
+
+class SM2CipherTest {
+    public static void main(String[] args) throws Exception {
+        KeyPair key = new KeyPair();
+        java.util.Random random = new java.util.Random(1);
+        int bad = 0;
+        for (SM2Cipher.Mode mode : SM2Cipher.Mode.values()) {
+            SM2Cipher cipher = new SM2Cipher(key, mode);
+            for (int len : new int[]{0, 1, 31, 32, 33, 100, 8191, 8192, 8193, 50000}) {
+                byte[] M = new byte[len];
+                random.nextBytes(M);
+                byte[] C = cipher.encrypt(M);
+                bad += Arrays.equals(M, cipher.decrypt(C)) ? 0 : 1;
+                bad += Arrays.equals(M, naive(key.getPrivate(), C, mode)) ? 0 : 1;
+                // 篡改C2或C3
+                if (len > 0) {
+                    C[C.length - 1] ^= 1;
+                    try {
+                        cipher.decrypt(C);
+                        bad++;
+                    } catch (GeneralSecurityException e) {
+                        // 预期
+                    }
+                }
+                java.nio.file.Path tmp = java.nio.file.Files.createTempFile("sm2cipher", ".bin");
+                try (java.nio.channels.FileChannel out = java.nio.channels.FileChannel.open(tmp,
+                        java.nio.file.StandardOpenOption.WRITE)) {
+                    cipher.encrypt(Channels.newChannel(new ByteArrayInputStream(M)), out);
+                }
+                ByteArrayOutputStream plain = new ByteArrayOutputStream();
+                try (java.nio.channels.FileChannel in = java.nio.channels.FileChannel.open(tmp)) {
+                    cipher.decrypt(in, Channels.newChannel(plain));
+                }
+                java.nio.file.Files.delete(tmp);
+                bad += Arrays.equals(M, plain.toByteArray()) ? 0 : 1;
+            }
+        }
+        System.out.println("cipher bad=" + bad);
+        try {
+            new SM2Cipher(key, SM2Cipher.Mode.C1C3C2)
+                    .encrypt(new ByteArrayInputStream(new byte[1]), new ByteArrayOutputStream());
+            System.out.println("C1C3C2 stream accepted");
+        } catch (UnsupportedOperationException e) {
+            System.out.println("C1C3C2 stream rejected");
+        }
+        SM2Cipher cipher = new SM2Cipher(key, SM2Cipher.Mode.C1C3C2);
+        byte[] M = new byte[1 << 20];
+        for (int r = 0; r < 3; r++) {
+            long t0 = System.nanoTime();
+            byte[] C = cipher.encrypt(M);
+            long t1 = System.nanoTime();
+            cipher.decrypt(C);
+            long t2 = System.nanoTime();
+            System.out.printf("encrypt: %.1f MB/s, decrypt: %.1f MB/s%n",
+                    1e3 / ((t1 - t0) / 1e6), 1e3 / ((t2 - t1) / 1e6));
+        }
+    }
+    
+    /**
+     * 按标准逐步解密，每块KDF都重新杂凑x2 || y2 || ct，C3不符时返回null
+     */
+    private static byte[] naive(BigInteger d, byte[] C, SM2Cipher.Mode mode) {
+        int mlen = C.length - SM2Cipher.C1_LENGTH - SM2Cipher.C3_LENGTH;
+        int c2Off = mode == SM2Cipher.Mode.C1C3C2 ? SM2Cipher.C1_LENGTH + SM2Cipher.C3_LENGTH : SM2Cipher.C1_LENGTH;
+        int c3Off = mode == SM2Cipher.Mode.C1C3C2 ? SM2Cipher.C1_LENGTH : SM2Cipher.C1_LENGTH + mlen;
+        ECPoint C1 = new ECPoint(new BigInteger(1, Arrays.copyOfRange(C, 1, 33)),
+                new BigInteger(1, Arrays.copyOfRange(C, 33, 65)));
+        ECPoint S = C1.multiply(d);
+        byte[] x2 = toBytes(S.getX()), y2 = toBytes(S.getY());
+        byte[] M = Arrays.copyOfRange(C, c2Off, c2Off + mlen);
+        for (int i = 0, ct = 1; i < mlen; i += 32, ct++) {
+            SM3 h = new SM3();
+            h.update(x2);
+            h.update(y2);
+            h.update(SM3.toByteArray(ct));
+            byte[] t = h.doFinal();
+            for (int j = 0; j < 32 && i + j < mlen; j++) {
+                M[i + j] ^= t[j];
+            }
+        }
+        SM3 h = new SM3();
+        h.update(x2);
+        h.update(M);
+        h.update(y2);
+        return Arrays.equals(h.doFinal(), Arrays.copyOfRange(C, c3Off, c3Off + 32)) ? M : null;
+    }
+    
+    private static byte[] toBytes(BigInteger x) {
+        byte[] bytes = x.toByteArray(), out = new byte[32];
+        int len = Math.min(bytes.length, 32);
+        System.arraycopy(bytes, bytes.length - len, out, 32 - len, len);
+        return out;
+    }
+}
@@ -0,0 +1,243 @@
+package sm2;
+
+import sm2.support.ECPoint;
+import sm2.support.Fn;
+import sm2.support.Fp;
+import sm2.support.KeyValidator;
+import sm3.SM3;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+import static sm2.Curve.*;
+
+/**
+ * SM2密钥交换协议(GB/T 32918.3)
+ * <p>
+ * 发起方A与响应方B各持一个实例，流程为：
+ * <ol>
+ * <li>双方调用ephemeral()得到临时公钥R，发送给对方；</li>
+ * <li>双方以对方的R调用agree()得到共享密钥；</li>
+ * <li>B将confirmation()即SB发给A，A用verify()检查；A再将confirmation()即SA发给B，B用verify()检查。</li>
+ * </ol>
+ * 确认步骤可选。U = [tA](PB + [x̄2]RB)按tA * PB + (tA * x̄2) * RB交错计算，对方长期公钥的预计算表被缓存，
+ * 临时密钥对可从EphemeralKeyPool中取得，因此一次协商中只有一次变基点倍点运算。
+ * <p>
+ * 一个实例只用于一次协商，不能被多个线程同时使用。
+ */
+public class SM2KeyExchange {
+    
+    /**
+     * x̄ = 2^w + (x & (2^w - 1))，w = ceil(ceil(log2(n)) / 2) - 1 = 127
+     */
+    private static final BigInteger TWO_W = BigInteger.ONE.shiftLeft(127);
+    private static final BigInteger MASK = TWO_W.subtract(BigInteger.ONE);
+    
+    private final boolean initiator;
+    private final BigInteger d;
+    private final ECPoint peer;
+    private final byte[] zA;
+    private final byte[] zB;
+    
+    private EphemeralKeyPool pool;
+    private BigInteger r;
+    private ECPoint R;
+    
+    /**
+     * 协商完成后的yU与SM3(xU || ZA || ZB || x1 || y1 || x2 || y2)，用于计算确认值
+     */
+    private byte[] yU;
+    private byte[] inner;
+    
+    /**
+     * 利用双方的可辨别标识初始化
+     *
+     * @param id        己方可辨别标识
+     * @param keypair   己方密钥对
+     * @param peerId    对方可辨别标识
+     * @param peer      对方公钥
+     * @param initiator 己方是否为发起方A
+     */
+    public SM2KeyExchange(String id, KeyPair keypair, String peerId, ECPoint peer, boolean initiator) {
+        this(ZA(id, keypair.getPublic()), keypair, ZA(peerId, peer), peer, initiator);
+    }
+    
+    /**
+     * 利用已计算好的双方杂凑值Z初始化
+     *
+     * @param z         己方杂凑值Z
+     * @param keypair   己方密钥对
+     * @param peerZ     对方杂凑值Z
+     * @param peer      对方公钥
+     * @param initiator 己方是否为发起方A
+     */
+    public SM2KeyExchange(byte[] z, KeyPair keypair, byte[] peerZ, ECPoint peer, boolean initiator) {
+        this.initiator = initiator;
+        this.d = keypair.getPrivate();
+        this.peer = peer;
+        this.zA = initiator ? z : peerZ;
+        this.zB = initiator ? peerZ : z;
+    }
+    
+    private static byte[] ZA(String id, ECPoint P) {
+        try {
+            return SM2.ZA(id, P);
+        } catch (Exception e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+    
+    /**
+     * 设置临时密钥对的来源，未设置时当场生成
+     *
+     * @param pool 临时密钥对池
+     */
+    public void setPool(EphemeralKeyPool pool) {
+        this.pool = pool;
+    }
+    
+    /**
+     * 取得临时密钥对(r, R)
+     *
+     * @return 临时公钥R，发送给对方
+     */
+    public ECPoint ephemeral() {
+        KeyPair keypair = this.pool != null ? this.pool.take() : new KeyPair();
+        this.r = keypair.getPrivate();
+        this.R = keypair.getPublic();
+        return this.R;
+    }
+    
+    /**
+     * 计算共享密钥
+     *
+     * @param peerR 对方的临时公钥
+     * @param klen  密钥的字节数
+     * @return 共享密钥
+     * @throws GeneralSecurityException 对方的临时公钥不在曲线上，或U为无穷远点
+     */
+    public byte[] agree(ECPoint peerR, int klen) throws GeneralSecurityException {
+        if (this.r == null) {
+            throw new IllegalStateException("ephemeral key is not generated.");
+        }
+        if (!KeyValidator.isValid(peerR)) {
+            throw new GeneralSecurityException("invalid R.");
+        }
+        BigInteger x = xbar(this.R.getX()), peerX = xbar(peerR.getX());
+        BigInteger t = this.d.add(x.multiply(this.r)).mod(n);
+        // 临时私钥只用一次
+        this.r = null;
+        ECPoint U = ECPoint.multiplyPlus(Fn.fromBigInteger(t), this.peer,
+                Fn.fromBigInteger(t.multiply(peerX)), peerR);
+        if (ECPoint.isO(U)) {
+            throw new GeneralSecurityException("U is the point at infinity.");
+        }
+        byte[] xU = bytes(U.getX());
+        this.yU = bytes(U.getY());
+        byte[] K = new KDF(xU, this.yU, this.zA, this.zB).generate(klen);
+        ECPoint RA = this.initiator ? this.R : peerR, RB = this.initiator ? peerR : this.R;
+        SM3 sm3 = new SM3();
+        sm3.update(xU);
+        sm3.update(this.zA);
+        sm3.update(this.zB);
+        sm3.update(bytes(RA.getX()));
+        sm3.update(bytes(RA.getY()));
+        sm3.update(bytes(RB.getX()));
+        sm3.update(bytes(RB.getY()));
+        this.inner = sm3.doFinal();
+        return K;
+    }
+    
+    /**
+     * 己方发送的确认值：发起方为SA，响应方为SB
+     *
+     * @return 确认值
+     */
+    public byte[] confirmation() {
+        return this.confirm(this.initiator ? 0x03 : 0x02);
+    }
+    
+    /**
+     * 检查对方发来的确认值：发起方检查SB = S1，响应方检查SA = S2
+     *
+     * @param S 对方的确认值
+     * @return 是否一致
+     */
+    public boolean verify(byte[] S) {
+        return MessageDigest.isEqual(S, this.confirm(this.initiator ? 0x02 : 0x03));
+    }
+    
+    /**
+     * SM3(tag || yU || SM3(xU || ZA || ZB || x1 || y1 || x2 || y2))
+     */
+    private byte[] confirm(int tag) {
+        if (this.inner == null) {
+            throw new IllegalStateException("key is not agreed.");
+        }
+        SM3 sm3 = new SM3();
+        sm3.update((byte) tag);
+        sm3.update(this.yU);
+        sm3.update(this.inner);
+        return sm3.doFinal();
+    }
+    
+    private static BigInteger xbar(BigInteger x) {
+        return TWO_W.add(x.and(MASK));
+    }
+    
+    private static byte[] bytes(BigInteger x) {
+        byte[] out = new byte[32];
+        Fp.encode(Fp.fromBigInteger(x), out, 0);
+        return out;
+    }
+}
+
+class SM2KeyExchangeTest {
+    public static void main(String[] args) throws Exception {
+        KeyPair alice = new KeyPair(), bob = new KeyPair();
+        int bad = 0;
+        try (EphemeralKeyPool pool = new EphemeralKeyPool(1024)) {
+            for (int i = 0; i < 100; i++) {
+                SM2KeyExchange A = new SM2KeyExchange("ALICE123@YAHOO.COM", alice,
+                        "BILL456@YAHOO.COM", bob.getPublic(), true);
+                SM2KeyExchange B = new SM2KeyExchange("BILL456@YAHOO.COM", bob,
+                        "ALICE123@YAHOO.COM", alice.getPublic(), false);
+                if (i % 2 == 0) {
+                    A.setPool(pool);
+                    B.setPool(pool);
+                }
+                ECPoint RA = A.ephemeral(), RB = B.ephemeral();
+                byte[] KB = B.agree(RA, 16 + i);
+                byte[] KA = A.agree(RB, 16 + i);
+                bad += java.util.Arrays.equals(KA, KB) ? 0 : 1;
+                bad += A.verify(B.confirmation()) && B.verify(A.confirmation()) ? 0 : 1;
+                bad += A.verify(A.confirmation()) ? 1 : 0;
+            }
+            System.out.println("key exchange bad=" + bad);
+            try {
+                SM2KeyExchange A = new SM2KeyExchange("A", alice, "B", bob.getPublic(), true);
+                A.ephemeral();
+                A.agree(new ECPoint(gx, gy.add(BigInteger.ONE)), 16);
+                System.out.println("invalid R accepted");
+            } catch (GeneralSecurityException e) {
+                System.out.println("invalid R rejected");
+            }
+            byte[] zA = SM2.ZA("A", alice.getPublic()), zB = SM2.ZA("B", bob.getPublic());
+            while (pool.available() < 1000) {
+                Thread.onSpinWait();
+            }
+            for (int r = 0; r < 3; r++) {
+                long t0 = System.nanoTime();
+                for (int i = 0; i < 500; i++) {
+                    SM2KeyExchange A = new SM2KeyExchange(zA, alice, zB, bob.getPublic(), true);
+                    A.setPool(pool);
+                    A.ephemeral();
+                    A.agree(bob.getPublic(), 16);
+                }
+                long t1 = System.nanoTime();
+                System.out.printf("agree: %.0f/s%n", 500 / ((t1 - t0) / 1e9));
+            }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package sm2;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 签名的定长r || s与ASN.1 DER编码之间的转换
+ * <p>
+ * DER编码为SEQUENCE { INTEGER r, INTEGER s }，即GM/T 0009中的SM2Signature结构。
+ * 所有方法只读写调用者给出的数组，不分配内存。
+ */
+public final class SignatureCodec {
+    
+    /**
+     * 定长签名r || s的字节数
+     */
+    public static final int RAW_LENGTH = 64;
+    
+    /**
+     * DER编码的最大字节数：2字节SEQUENCE头，加上两个各至多35字节的INTEGER
+     */
+    public static final int MAX_DER_LENGTH = 72;
+    
+    private static final int SEQUENCE = 0x30;
+    private static final int INTEGER = 0x02;
+    
+    private SignatureCodec() {
+    }
+    
+    /**
+     * 定长签名的DER编码长度
+     *
+     * @param raw    定长签名
+     * @param rawOff 定长签名的起始位置
+     * @return DER编码的字节数
+     */
+    public static int derLength(byte[] raw, int rawOff) {
+        return 2 + integerLength(raw, rawOff) + integerLength(raw, rawOff + 32);
+    }
+    
+    /**
+     * 将定长签名r || s编码为DER
+     *
+     * @param raw    定长签名
+     * @param rawOff 定长签名的起始位置，读取64字节
+     * @param der    输出，至少有derLength(raw, rawOff)字节的空间
+     * @param derOff 输出的起始位置
+     * @return 写入的字节数
+     */
+    public static int toDER(byte[] raw, int rawOff, byte[] der, int derOff) {
+        int pos = derOff;
+        der[pos++] = (byte) SEQUENCE;
+        der[pos++] = (byte) (integerLength(raw, rawOff) + integerLength(raw, rawOff + 32));
+        pos = putInteger(raw, rawOff, der, pos);
+        pos = putInteger(raw, rawOff + 32, der, pos);
+        return pos - derOff;
+    }
+    
+    /**
+     * 将DER编码的签名解码为定长签名r || s，只接受严格的DER编码
+     *
+     * @param der    DER编码
+     * @param derOff DER编码的起始位置
+     * @param derLen 可读取的字节数
+     * @param raw    输出
+     * @param rawOff 输出的起始位置，写入64字节
+     * @return DER编码实际占用的字节数
+     * @throws IllegalArgumentException 编码不合法，或r、s超过32字节
+     */
+    public static int fromDER(byte[] der, int derOff, int derLen, byte[] raw, int rawOff) {
+        if (derLen < 2 || (der[derOff] & 0xFF) != SEQUENCE) {
+            throw new IllegalArgumentException("invalid DER signature.");
+        }
+        int contentLen = der[derOff + 1] & 0xFF;
+        // 内容至多70字节，长度只能是短格式
+        if (contentLen >= 0x80 || 2 + contentLen > derLen) {
+            throw new IllegalArgumentException("invalid DER signature.");
+        }
+        int end = derOff + 2 + contentLen;
+        int pos = getInteger(der, derOff + 2, end, raw, rawOff);
+        pos = getInteger(der, pos, end, raw, rawOff + 32);
+        if (pos != end) {
+            throw new IllegalArgumentException("invalid DER signature.");
+        }
+        return end - derOff;
+    }
+    
+    /**
+     * 32字节无符号整数编码为INTEGER后的字节数，含2字节的头
+     */
+    private static int integerLength(byte[] raw, int off) {
+        int start = off;
+        while (start < off + 31 && raw[start] == 0) {
+            start++;
+        }
+        return 2 + (off + 32 - start) + (raw[start] < 0 ? 1 : 0);
+    }
+    
+    private static int putInteger(byte[] raw, int off, byte[] der, int pos) {
+        int start = off;
+        while (start < off + 31 && raw[start] == 0) {
+            start++;
+        }
+        int len = off + 32 - start;
+        boolean pad = raw[start] < 0;
+        der[pos++] = (byte) INTEGER;
+        der[pos++] = (byte) (pad ? len + 1 : len);
+        if (pad) {
+            der[pos++] = 0;
+        }
+        System.arraycopy(raw, start, der, pos, len);
+        return pos + len;
+    }
+    
+    /**
+     * 读取一个非负INTEGER，右对齐写入32字节
+     *
+     * @return INTEGER之后的位置
+     */
+    private static int getInteger(byte[] der, int pos, int end, byte[] raw, int off) {
+        if (end - pos < 2 || der[pos] != INTEGER) {
+            throw new IllegalArgumentException("invalid DER signature.");
+        }
+        int len = der[pos + 1] & 0xFF;
+        pos += 2;
+        if (len == 0 || len > 33 || end - pos < len) {
+            throw new IllegalArgumentException("invalid DER signature.");
+        }
+        // 不能为负数，也不能有多余的前导0
+        if (der[pos] < 0 || (len > 1 && der[pos] == 0 && der[pos + 1] >= 0)) {
+            throw new IllegalArgumentException("invalid DER signature.");
+        }
+        int start = pos, valueLen = len;
+        if (der[pos] == 0 && len > 1) {
+            start++;
+            valueLen--;
+        }
+        if (valueLen > 32) {
+            throw new IllegalArgumentException("invalid DER signature.");
+        }
+        for (int i = 0; i < 32 - valueLen; i++) {
+            raw[off + i] = 0;
+        }
+        System.arraycopy(der, start, raw, off + 32 - valueLen, valueLen);
+        return pos + len;
+    }
+}
+
+class SignatureCodecTest {
+    public static void main(String[] args) {
+        KeyPair key = new KeyPair();
+        SM2 signer = new SM2("ALICE123@YAHOO.COM", key);
+        SM2 verifier = new SM2("ALICE123@YAHOO.COM", key.getPublic());
+        byte[] M = "message digest".getBytes();
+        byte[] raw = new byte[SignatureCodec.RAW_LENGTH], back = new byte[SignatureCodec.RAW_LENGTH];
+        byte[] der = new byte[SignatureCodec.MAX_DER_LENGTH];
+        int bad = 0;
+        for (int i = 0; i < 200; i++) {
+            signer.sign(M, 0, M.length, raw, 0);
+            // 覆盖前导0与最高位为1的情形
+            if (i % 4 == 1) {
+                raw[0] = raw[1] = 0;
+            }
+            int len = SignatureCodec.toDER(raw, 0, der, 0);
+            bad += len == SignatureCodec.derLength(raw, 0) ? 0 : 1;
+            bad += SignatureCodec.fromDER(der, 0, len, back, 0) == len && Arrays.equals(raw, back) ? 0 : 1;
+            if (i % 4 != 1) {
+                bad += verifier.verify(M, 0, M.length, raw, 0) ? 0 : 1;
+            }
+        }
+        System.out.println("codec bad=" + bad);
+        try {
+            SignatureCodec.fromDER(new byte[]{0x30, 0x06, 0x02, 0x01, (byte) 0x80, 0x02, 0x01, 0x01}, 0, 8, back, 0);
+            System.out.println("negative INTEGER accepted");
+        } catch (IllegalArgumentException e) {
+            System.out.println("negative INTEGER rejected");
+        }
+        ByteBuffer sig = ByteBuffer.allocateDirect(SignatureCodec.RAW_LENGTH);
+        signer.sign(ByteBuffer.wrap(M), sig);
+        sig.flip();
+        System.out.println("buffer verify: " + verifier.verify(ByteBuffer.wrap(M), sig));
+    }
+}
@@ -0,0 +1,93 @@
+package sm2.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 签名服务的二进制帧格式，所有整数均为大端
+ * <p>
+ * 请求：长度(4) || 操作(1) || 请求号(4) || 密钥号(4) || 数据，长度为其后的字节数。
+ * 签名请求的数据为消息；验证请求的数据为64字节的r || s加上消息。
+ * <p>
+ * 响应：长度(4) || 请求号(4) || 状态(1) || 数据。签名成功时数据为64字节的r || s，其余情形没有数据。
+ * 同一连接上的请求可以连续发送而不等待响应，响应按处理完成的顺序返回，由请求号对应。
+ */
+final class Protocol {
+    
+    static final byte SIGN = 1;
+    static final byte VERIFY = 2;
+    
+    /**
+     * 签名成功，或验证通过
+     */
+    static final byte OK = 0;
+    
+    /**
+     * 验证不通过
+     */
+    static final byte INVALID = 1;
+    
+    /**
+     * 密钥号不存在、操作未知或请求格式错误
+     */
+    static final byte ERROR = 2;
+    
+    static final int SIG_LENGTH = 64;
+    
+    /**
+     * 请求中长度之后的固定部分
+     */
+    static final int REQUEST_HEADER = 9;
+    
+    /**
+     * 响应中长度之后的固定部分
+     */
+    static final int RESPONSE_HEADER = 5;
+    
+    /**
+     * 单帧的长度上限，超过时视为对端出错并关闭连接
+     */
+    static final int MAX_FRAME = 16 << 20;
+    
+    private Protocol() {
+    }
+    
+    /**
+     * 从buf中取出一个完整的帧
+     *
+     * @param buf 读模式的缓冲区，帧不完整时位置不变
+     * @return 帧的内容(不含长度)，帧不完整时为null
+     * @throws IOException 帧长度不合法
+     */
+    static ByteBuffer nextFrame(ByteBuffer buf) throws IOException {
+        if (buf.remaining() < 4) {
+            return null;
+        }
+        int len = buf.getInt(buf.position());
+        if (len < 0 || len > MAX_FRAME) {
+            throw new IOException("invalid frame length: " + len);
+        }
+        if (buf.remaining() < 4 + len) {
+            return null;
+        }
+        ByteBuffer frame = buf.slice(buf.position() + 4, len);
+        buf.position(buf.position() + 4 + len);
+        return frame;
+    }
+    
+    /**
+     * 保证buf在compact之后还能容纳一个完整的帧
+     *
+     * @param buf 读模式的缓冲区
+     * @return 写模式的缓冲区，可能是新分配的
+     */
+    static ByteBuffer compact(ByteBuffer buf) {
+        int need = buf.remaining() >= 4 ? 4 + Math.max(0, Math.min(buf.getInt(buf.position()), MAX_FRAME)) : 4;
+        if (need > buf.capacity()) {
+            ByteBuffer bigger = ByteBuffer.allocate(need);
+            bigger.put(buf);
+            return bigger;
+        }
+        return buf.compact();
+    }
+}
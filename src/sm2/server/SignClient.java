@@ -0,0 +1,149 @@
+package sm2.server;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 签名服务的客户端
+ * <p>
+ * 请求连续发送，不等待前一个请求的响应；后台线程读取响应并完成对应的CompletableFuture。
+ * 可被多个线程同时使用。
+ */
+public class SignClient implements AutoCloseable {
+    
+    private final SocketChannel channel;
+    private final Map<Integer, CompletableFuture<ByteBuffer>> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger ids = new AtomicInteger();
+    private final Thread reader;
+    private volatile boolean closed;
+    
+    /**
+     * 连接到签名服务
+     *
+     * @param address 服务地址，InetSocketAddress或UnixDomainSocketAddress
+     * @throws IOException 连接失败
+     */
+    public SignClient(SocketAddress address) throws IOException {
+        this.channel = address instanceof UnixDomainSocketAddress
+                ? SocketChannel.open(StandardProtocolFamily.UNIX) : SocketChannel.open();
+        this.channel.connect(address);
+        this.reader = new Thread(this::read, "sm2-client-reader");
+        this.reader.setDaemon(true);
+        this.reader.start();
+    }
+    
+    /**
+     * 请求签名
+     *
+     * @param key 服务端的密钥号
+     * @param M   消息
+     * @return 定长签名r || s
+     */
+    public CompletableFuture<byte[]> sign(int key, byte[] M) {
+        return this.send(Protocol.SIGN, key, null, M).thenApply(data -> {
+            byte[] sig = new byte[Protocol.SIG_LENGTH];
+            data.get();
+            data.get(sig);
+            return sig;
+        });
+    }
+    
+    /**
+     * 请求验证
+     *
+     * @param key 服务端的密钥号
+     * @param M   消息
+     * @param sig 定长签名r || s
+     * @return 验证结果
+     */
+    public CompletableFuture<Boolean> verify(int key, byte[] M, byte[] sig) {
+        return this.send(Protocol.VERIFY, key, sig, M).thenApply(data -> data.get() == Protocol.OK);
+    }
+    
+    /**
+     * 发送请求
+     *
+     * @return 响应中请求号之后的部分，从状态字节开始
+     */
+    private CompletableFuture<ByteBuffer> send(byte op, int key, byte[] sig, byte[] M) {
+        int id = this.ids.getAndIncrement();
+        CompletableFuture<ByteBuffer> future = new CompletableFuture<>();
+        this.pending.put(id, future);
+        int len = Protocol.REQUEST_HEADER + (sig != null ? sig.length : 0) + M.length;
+        ByteBuffer buf = ByteBuffer.allocate(4 + len);
+        buf.putInt(len).put(op).putInt(id).putInt(key);
+        if (sig != null) {
+            buf.put(sig);
+        }
+        buf.put(M).flip();
+        try {
+            synchronized (this.channel) {
+                while (buf.hasRemaining()) {
+                    this.channel.write(buf);
+                }
+            }
+        } catch (IOException e) {
+            this.pending.remove(id);
+            future.completeExceptionally(e);
+        }
+        if (this.closed) {
+            // 读线程可能已经结束，不会再完成这个请求
+            this.failPending(new IOException("connection closed."));
+        }
+        return future;
+    }
+    
+    private void read() {
+        ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+        try {
+            while (this.channel.read(buf) >= 0) {
+                buf.flip();
+                ByteBuffer frame;
+                while ((frame = Protocol.nextFrame(buf)) != null) {
+                    CompletableFuture<ByteBuffer> future = this.pending.remove(frame.getInt());
+                    if (future == null) {
+                        continue;
+                    }
+                    if (frame.get(frame.position()) == Protocol.ERROR) {
+                        future.completeExceptionally(new IOException("request failed."));
+                    } else {
+                        // 缓冲区随后会被复用，调用者可能在别的线程中读取结果
+                        future.complete(ByteBuffer.allocate(frame.remaining()).put(frame).flip());
+                    }
+                }
+                buf = Protocol.compact(buf);
+            }
+        } catch (IOException e) {
+            // 连接关闭
+        }
+        this.closed = true;
+        this.failPending(new IOException("connection closed."));
+    }
+    
+    private void failPending(IOException e) {
+        for (Integer id : this.pending.keySet()) {
+            CompletableFuture<ByteBuffer> future = this.pending.remove(id);
+            if (future != null) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+    
+    /**
+     * 关闭连接，未完成的请求以异常结束
+     */
+    @Override
+    public void close() throws IOException {
+        this.closed = true;
+        this.channel.close();
+        this.failPending(new IOException("connection closed."));
+    }
+}
@@ -0,0 +1,519 @@
+package sm2.server;
+
+import sm2.KeyPair;
+import sm2.SM2;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 本机签名服务
+ * <p>
+ * 在回环地址或Unix域套接字上监听，为每个密钥号保留一个已预计算的SM2实例，避免各进程分别承担JIT预热和建表的开销。
+ * 每个连接一个读线程，解析出的请求放入共享队列；分发线程每次取出队列中已有的全部请求(至多MAX_BATCH个)作为一批，
+ * 在ForkJoin池中并行处理，再把同一连接的响应合并后交给该连接的写线程。负载越高，每批合并的请求越多。
+ * <p>
+ * 共享队列有界，满时读线程阻塞，不再读取新的请求；每个连接已读入但响应尚未写出的请求另有字节数上限，
+ * 不读响应的客户端只会阻塞自己的读写线程，不会拖住分发线程和其他连接。
+ * 帧格式见Protocol。
+ */
+public class SignServer implements AutoCloseable {
+    
+    private static final int MAX_BATCH = 512;
+    
+    /**
+     * 共享队列的容量
+     */
+    private static final int QUEUE_CAPACITY = 8 * MAX_BATCH;
+    
+    /**
+     * 每个连接已读入、响应尚未写出的请求所占的字节数上限
+     */
+    private static final int MAX_PENDING_BYTES = 16 << 20;
+    
+    /**
+     * 每个请求在数据之外大致占用的字节数(对象与响应)，避免大量空请求绕过上限
+     */
+    private static final int REQUEST_OVERHEAD = 256;
+    
+    private final ServerSocketChannel server;
+    private final SocketAddress address;
+    private final Map<Integer, SM2> keys = new ConcurrentHashMap<>();
+    private final BlockingQueue<Request> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final ExecutorService readers = Executors.newCachedThreadPool(r -> daemon(r, "sm2-server-reader"));
+    private final ExecutorService writers = Executors.newCachedThreadPool(r -> daemon(r, "sm2-server-writer"));
+    private final ForkJoinPool pool;
+    private final Thread acceptor;
+    private final Thread dispatcher;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private volatile boolean closed;
+    
+    /**
+     * 在回环地址的指定端口上启动服务
+     *
+     * @param port 端口，为0时由系统分配
+     * @throws IOException 监听失败
+     */
+    public SignServer(int port) throws IOException {
+        this(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), ForkJoinPool.commonPool());
+    }
+    
+    /**
+     * 启动服务
+     *
+     * @param address 监听地址，InetSocketAddress或UnixDomainSocketAddress
+     * @param pool    处理请求的线程池
+     * @throws IOException 监听失败
+     */
+    public SignServer(SocketAddress address, ForkJoinPool pool) throws IOException {
+        this.server = address instanceof UnixDomainSocketAddress
+                ? ServerSocketChannel.open(StandardProtocolFamily.UNIX) : ServerSocketChannel.open();
+        this.server.bind(address);
+        this.address = this.server.getLocalAddress();
+        this.pool = pool;
+        this.acceptor = new Thread(this::accept, "sm2-server-acceptor");
+        this.dispatcher = new Thread(this::dispatch, "sm2-server-dispatcher");
+        this.acceptor.setDaemon(true);
+        this.dispatcher.setDaemon(true);
+        this.acceptor.start();
+        this.dispatcher.start();
+    }
+    
+    /**
+     * 登记一个密钥，已登记的密钥号会被替换
+     *
+     * @param key 密钥号
+     * @param sm2 带私钥时可用于签名和验证，只有公钥时只能用于验证
+     */
+    public void register(int key, SM2 sm2) {
+        this.keys.put(key, sm2);
+    }
+    
+    /**
+     * @return 实际监听的地址
+     */
+    public SocketAddress getAddress() {
+        return this.address;
+    }
+    
+    /**
+     * @return 已处理的请求数
+     */
+    public long requests() {
+        return this.requests.get();
+    }
+    
+    /**
+     * @return 已处理的批数
+     */
+    public long batches() {
+        return this.batches.get();
+    }
+    
+    private void accept() {
+        try {
+            while (!this.closed) {
+                Connection connection = new Connection(this.server.accept());
+                this.writers.execute(connection::write);
+                this.readers.execute(() -> this.read(connection));
+            }
+        } catch (IOException e) {
+            // 服务关闭
+        }
+    }
+    
+    private static Thread daemon(Runnable r, String name) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+    }
+    
+    /**
+     * 读取一个连接上的请求，放入共享队列。队列已满或该连接未写出的请求过多时阻塞
+     */
+    private void read(Connection connection) {
+        ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+        try {
+            while (connection.channel.read(buf) >= 0) {
+                buf.flip();
+                ByteBuffer frame;
+                while ((frame = Protocol.nextFrame(buf)) != null) {
+                    Request request = Request.parse(connection, frame);
+                    connection.pending.acquire(request.cost());
+                    this.queue.put(request);
+                }
+                buf = Protocol.compact(buf);
+            }
+        } catch (IOException | InterruptedException e) {
+            // 连接出错或服务关闭，丢弃该连接
+        }
+        connection.close();
+    }
+    
+    private void dispatch() {
+        List<Request> batch = new ArrayList<>(MAX_BATCH);
+        try {
+            while (!this.closed) {
+                batch.add(this.queue.take());
+                this.queue.drainTo(batch, MAX_BATCH - 1);
+                List<Request> work = batch;
+                this.pool.submit(() -> work.parallelStream().forEach(request -> request.run(this.keys))).join();
+                this.respond(batch);
+                this.requests.addAndGet(batch.size());
+                this.batches.incrementAndGet();
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // 服务关闭
+        }
+    }
+    
+    /**
+     * 按连接合并响应，交给各连接的写线程，每个连接只写一次
+     */
+    private void respond(List<Request> batch) {
+        Map<Connection, List<Request>> byConnection = new IdentityHashMap<>();
+        for (Request request : batch) {
+            byConnection.computeIfAbsent(request.connection, c -> new ArrayList<>()).add(request);
+        }
+        for (Map.Entry<Connection, List<Request>> entry : byConnection.entrySet()) {
+            entry.getKey().send(entry.getValue());
+        }
+    }
+    
+    /**
+     * 停止服务并关闭所有连接，Unix域套接字的文件会被删除
+     */
+    @Override
+    public void close() throws IOException {
+        this.closed = true;
+        this.server.close();
+        this.dispatcher.interrupt();
+        this.readers.shutdownNow();
+        this.writers.shutdownNow();
+        if (this.address instanceof UnixDomainSocketAddress) {
+            Files.deleteIfExists(((UnixDomainSocketAddress) this.address).getPath());
+        }
+    }
+    
+    /**
+     * 一个客户端连接，响应由该连接自己的写线程写出
+     */
+    private static final class Connection {
+        
+        /**
+         * 写线程的结束标记
+         */
+        private static final List<Request> CLOSE = new ArrayList<>();
+        
+        private final SocketChannel channel;
+        
+        /**
+         * 待写出的响应，长度受pending限制
+         */
+        private final BlockingQueue<List<Request>> outbound = new LinkedBlockingQueue<>();
+        
+        /**
+         * 已读入、响应尚未写出的请求还可以占用的字节数
+         */
+        private final Semaphore pending = new Semaphore(MAX_PENDING_BYTES);
+        private volatile boolean closed;
+        
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+        
+        /**
+         * 由分发线程调用，不阻塞
+         */
+        void send(List<Request> responses) {
+            if (!this.closed) {
+                this.outbound.add(responses);
+            }
+        }
+        
+        /**
+         * 写线程的主循环，写出后归还这些请求占用的字节数
+         */
+        void write() {
+            try {
+                List<Request> responses;
+                while ((responses = this.outbound.take()) != CLOSE) {
+                    int len = 0, cost = 0;
+                    for (Request request : responses) {
+                        len += 4 + Protocol.RESPONSE_HEADER + (request.result != null ? request.result.length : 0);
+                        cost += request.cost();
+                    }
+                    ByteBuffer out = ByteBuffer.allocate(len);
+                    for (Request request : responses) {
+                        request.writeResponse(out);
+                    }
+                    out.flip();
+                    while (out.hasRemaining()) {
+                        this.channel.write(out);
+                    }
+                    this.pending.release(cost);
+                }
+            } catch (IOException | InterruptedException e) {
+                // 连接出错或服务关闭
+            }
+            this.close();
+        }
+        
+        void close() {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            try {
+                this.channel.close();
+            } catch (IOException e) {
+                // 忽略
+            }
+            this.outbound.add(CLOSE);
+            // 唤醒等待pending的读线程，它随后会在已关闭的通道上读取失败
+            this.pending.release(MAX_PENDING_BYTES);
+        }
+    }
+    
+    /**
+     * 一个请求及其处理结果
+     */
+    private static final class Request {
+        private final Connection connection;
+        private final byte op;
+        private final int id;
+        private final int key;
+        private final byte[] data;
+        private byte status = Protocol.ERROR;
+        private byte[] result;
+        
+        private Request(Connection connection, byte op, int id, int key, byte[] data) {
+            this.connection = connection;
+            this.op = op;
+            this.id = id;
+            this.key = key;
+            this.data = data;
+        }
+        
+        /**
+         * 解析一个请求帧，数据被复制，因为读缓冲区随后会被复用
+         */
+        static Request parse(Connection connection, ByteBuffer frame) throws IOException {
+            if (frame.remaining() < Protocol.REQUEST_HEADER) {
+                throw new IOException("truncated request.");
+            }
+            byte op = frame.get();
+            int id = frame.getInt(), key = frame.getInt();
+            byte[] data = new byte[frame.remaining()];
+            frame.get(data);
+            return new Request(connection, op, id, key, data);
+        }
+        
+        /**
+         * @return 该请求在响应写出之前占用的字节数
+         */
+        int cost() {
+            return Math.min(REQUEST_OVERHEAD + this.data.length, MAX_PENDING_BYTES);
+        }
+        
+        void run(Map<Integer, SM2> keys) {
+            SM2 sm2 = keys.get(this.key);
+            if (sm2 == null) {
+                return;
+            }
+            try {
+                if (this.op == Protocol.SIGN) {
+                    byte[] sig = new byte[Protocol.SIG_LENGTH];
+                    sm2.sign(this.data, 0, this.data.length, sig, 0);
+                    this.result = sig;
+                    this.status = Protocol.OK;
+                } else if (this.op == Protocol.VERIFY && this.data.length >= Protocol.SIG_LENGTH) {
+                    boolean valid = sm2.verify(this.data, Protocol.SIG_LENGTH,
+                            this.data.length - Protocol.SIG_LENGTH, this.data, 0);
+                    this.status = valid ? Protocol.OK : Protocol.INVALID;
+                }
+            } catch (RuntimeException e) {
+                // 例如只有公钥的密钥收到签名请求
+                this.result = null;
+                this.status = Protocol.ERROR;
+            }
+        }
+        
+        void writeResponse(ByteBuffer out) {
+            int len = Protocol.RESPONSE_HEADER + (this.result != null ? this.result.length : 0);
+            out.putInt(len).putInt(this.id).put(this.status);
+            if (this.result != null) {
+                out.put(this.result);
+            }
+        }
+    }
+}
+
+class SignServerTest {
+    /**
+     * 先做正确性检查，再做负载测试
+     *
+     * @param args 连接数、每个连接的请求数、每个连接同时未完成的请求数，均可省略
+     */
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int perConnection = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        int window = args.length > 2 ? Integer.parseInt(args[2]) : 128;
+        KeyPair key = new KeyPair();
+        SM2 signer = new SM2("ALICE123@YAHOO.COM", key);
+        SM2 verifier = new SM2("ALICE123@YAHOO.COM", key.getPublic());
+        byte[] M = "message digest".getBytes();
+        
+        try (SignServer server = new SignServer(0)) {
+            server.register(1, signer);
+            server.register(2, verifier);
+            check(server.getAddress(), verifier, M);
+            Path path = Files.createTempDirectory("sm2").resolve("sign.sock");
+            try (SignServer unix = new SignServer(UnixDomainSocketAddress.of(path), ForkJoinPool.commonPool())) {
+                unix.register(1, signer);
+                unix.register(2, verifier);
+                check(unix.getAddress(), verifier, M);
+            }
+            Files.deleteIfExists(path.getParent());
+            stalled(server.getAddress(), verifier, M);
+            
+            for (byte op : new byte[]{Protocol.SIGN, Protocol.VERIFY}) {
+                byte[] sig = new byte[Protocol.SIG_LENGTH];
+                signer.sign(M, 0, M.length, sig, 0);
+                long before = server.batches(), requests = server.requests();
+                long t0 = System.nanoTime();
+                Thread[] threads = new Thread[connections];
+                AtomicLong bad = new AtomicLong();
+                for (int c = 0; c < connections; c++) {
+                    threads[c] = new Thread(() -> {
+                        try (SignClient client = new SignClient(server.getAddress())) {
+                            Semaphore inFlight = new Semaphore(window);
+                            for (int i = 0; i < perConnection; i++) {
+                                inFlight.acquire();
+                                CompletableFuture<?> f = op == Protocol.SIGN
+                                        ? client.sign(1, M) : client.verify(1, M, sig).thenAccept(v -> {
+                                    if (!v) {
+                                        bad.incrementAndGet();
+                                    }
+                                });
+                                f.whenComplete((v, e) -> inFlight.release());
+                            }
+                            inFlight.acquire(window);
+                        } catch (Exception e) {
+                            bad.incrementAndGet();
+                        }
+                    });
+                    threads[c].start();
+                }
+                for (Thread t : threads) {
+                    t.join();
+                }
+                long t1 = System.nanoTime();
+                long total = (long) connections * perConnection;
+                System.out.printf("%s: %.0f ops/s, %d connections, avg batch %.1f, bad=%d%n",
+                        op == Protocol.SIGN ? "sign" : "verify", total / ((t1 - t0) / 1e9), connections,
+                        (double) (server.requests() - requests) / (server.batches() - before), bad.get());
+            }
+        }
+    }
+    
+    /**
+     * 一个客户端只发请求、从不读响应，其他连接仍应正常得到响应
+     */
+    private static void stalled(SocketAddress address, SM2 verifier, byte[] M) throws Exception {
+        SocketChannel flood = SocketChannel.open();
+        // 接收缓冲区很小，服务端对该连接的写出很快就会阻塞
+        flood.setOption(StandardSocketOptions.SO_RCVBUF, 4096);
+        flood.connect(address);
+        flood.configureBlocking(false);
+        // 数据短于签名的验证请求不做运算，直接返回ERROR
+        ByteBuffer req = ByteBuffer.allocate(4 + Protocol.REQUEST_HEADER + M.length);
+        req.flip();
+        int sent = 0;
+        long idle = System.nanoTime(), deadline = idle + TimeUnit.SECONDS.toNanos(60);
+        // 一直发送，直到连续一段时间写不进去，即服务端已停止读取该连接
+        while (System.nanoTime() - idle < TimeUnit.MILLISECONDS.toNanos(500)) {
+            if (System.nanoTime() > deadline) {
+                System.out.println("client not reading responses was never throttled");
+                flood.close();
+                return;
+            }
+            if (!req.hasRemaining()) {
+                req.clear();
+                req.putInt(Protocol.REQUEST_HEADER + M.length).put(Protocol.VERIFY).putInt(sent++).putInt(1).put(M);
+                req.flip();
+            }
+            if (flood.write(req) > 0) {
+                idle = System.nanoTime();
+            } else {
+                Thread.sleep(1);
+            }
+        }
+        long t0 = System.nanoTime();
+        boolean ok;
+        try (SignClient client = new SignClient(address)) {
+            byte[] sig = client.sign(1, M).get(10, TimeUnit.SECONDS);
+            ok = verifier.verify(M, 0, M.length, sig, 0);
+        } catch (TimeoutException e) {
+            ok = false;
+        }
+        System.out.printf("client not reading responses throttled after %d requests, "
+                + "does not stall others: %b (%.1f ms)%n", sent, ok, (System.nanoTime() - t0) / 1e6);
+        flood.close();
+    }
+    
+    private static void check(SocketAddress address, SM2 verifier, byte[] M) throws Exception {
+        try (SignClient client = new SignClient(address)) {
+            byte[] sig = client.sign(1, M).get();
+            boolean local = verifier.verify(M, 0, M.length, sig, 0);
+            boolean remote = client.verify(2, M, sig).get();
+            sig[5] ^= 1;
+            boolean tampered = client.verify(1, M, sig).get();
+            boolean unknown;
+            try {
+                client.sign(3, M).get();
+                unknown = false;
+            } catch (ExecutionException e) {
+                unknown = true;
+            }
+            boolean noPrivate;
+            try {
+                client.sign(2, M).get();
+                noPrivate = false;
+            } catch (ExecutionException e) {
+                noPrivate = true;
+            }
+            System.out.println(address + ": sign/verify " + (local && remote) + ", tampered rejected " + !tampered
+                    + ", unknown key rejected " + unknown + ", verify-only key cannot sign " + noPrivate);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package sm2.support;
+
+/**
+ * 点运算内部使用的可变仿射点，坐标为Fp的limb形式
+ */
+final class Affine {
+    
+    final int[] x = new int[8];
+    final int[] y = new int[8];
+    boolean inf = true;
+    
+    /**
+     * 构造无穷远点
+     */
+    Affine() {
+    }
+    
+    /**
+     * 由ECPoint构造
+     *
+     * @param P 点
+     */
+    Affine(ECPoint P) {
+        if (!ECPoint.isO(P)) {
+            Fp.copy(this.x, Fp.fromBigInteger(P.getX()));
+            Fp.copy(this.y, Fp.fromBigInteger(P.getY()));
+            this.inf = false;
+        }
+    }
+    
+    void set(Affine q) {
+        Fp.copy(this.x, q.x);
+        Fp.copy(this.y, q.y);
+        this.inf = q.inf;
+    }
+    
+    ECPoint toECPoint() {
+        return this.inf ? new ECPoint() : new ECPoint(Fp.toBigInteger(this.x), Fp.toBigInteger(this.y));
+    }
+}
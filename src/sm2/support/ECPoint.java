@@ -1,7 +1,8 @@
 package sm2.support;
 
 import java.math.BigInteger;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Objects;
 import java.util.Random;
 
 import static sm2.Curve.*;
@@ -11,6 +12,22 @@ public class ECPoint {
     private BigInteger x;
     private BigInteger y;
     
+    /**
+     * 尚未转换为仿射坐标的运算结果，为null表示x、y已是仿射坐标。
+     * 转换在第一次读取坐标时进行，且只进行一次
+     */
+    private volatile Jacobian pending;
+    
+    /**
+     * sG + tP中P的窗口大小，表只在缓存未命中时构建一次，因此取得比multiply更大
+     */
+    private static final int KEY_W = 6;
+    
+    /**
+     * 以公钥为键的奇数倍点表缓存，容量可由系统属性sm2.tableCacheSize设置
+     */
+    private static final LruCache<ECPoint, Affine[]> TABLES = new LruCache<>(Integer.getInteger("sm2.tableCacheSize", 4096));
+    
     /**
      * 构造非无穷远点
      *
@@ -30,12 +47,41 @@ public class ECPoint {
         this.y = null;
     }
     
+    /**
+     * 由Jacobian坐标构造，坐标在第一次读取时才转换为仿射坐标
+     *
+     * @param J Jacobian坐标的点，之后不能再被修改
+     */
+    ECPoint(Jacobian J) {
+        this.pending = J;
+    }
+    
+    /**
+     * 将Jacobian坐标转换为仿射坐标
+     */
+    private synchronized void normalize() {
+        Jacobian J = this.pending;
+        if (J == null) {
+            return;
+        }
+        if (!J.isInfinity()) {
+            Affine A = new Affine();
+            J.toAffine(A);
+            this.x = Fp.toBigInteger(A.x);
+            this.y = Fp.toBigInteger(A.y);
+        }
+        this.pending = null;
+    }
+    
     /**
      * 获取点的x坐标
      *
      * @return 返回点的x坐标
      */
     public BigInteger getX() {
+        if (this.pending != null) {
+            normalize();
+        }
         return this.x;
     }
     
@@ -45,6 +91,9 @@ public class ECPoint {
      * @return 返回点的y坐标
      */
     public BigInteger getY() {
+        if (this.pending != null) {
+            normalize();
+        }
         return this.y;
     }
     
@@ -67,6 +116,47 @@ public class ECPoint {
     }
     
     
+    /**
+     * 批量将点转换为仿射坐标，所有点共用一次求逆。已是仿射坐标的点不受影响
+     *
+     * @param points 点
+     */
+    public static void normalizeAll(ECPoint... points) {
+        Jacobian[] js = new Jacobian[points.length];
+        int[] index = new int[points.length];
+        int count = 0;
+        for (int i = 0; i < points.length; i++) {
+            Jacobian J = points[i].pending;
+            if (J != null) {
+                js[count] = J;
+                index[count++] = i;
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+        js = Arrays.copyOf(js, count);
+        Affine[] affine = new Affine[count];
+        Jacobian.toAffineAll(js, affine);
+        for (int i = 0; i < count; i++) {
+            points[index[i]].setAffine(js[i], affine[i]);
+        }
+    }
+    
+    /**
+     * 写入批量转换得到的仿射坐标，点已被其他线程转换时不变
+     */
+    private synchronized void setAffine(Jacobian J, Affine A) {
+        if (this.pending != J) {
+            return;
+        }
+        if (!A.inf) {
+            this.x = Fp.toBigInteger(A.x);
+            this.y = Fp.toBigInteger(A.y);
+        }
+        this.pending = null;
+    }
+    
     /**
      * 判断是否为无穷远点
      *
@@ -74,9 +164,33 @@ public class ECPoint {
      * @return 判断结果
      */
     public static boolean isO(ECPoint p) {
+        Jacobian J = p.pending;
+        if (J != null) {
+            return J.isInfinity();
+        }
         return p.x == null && p.y == null;
     }
     
+    /**
+     * 两点坐标相同时相等，无穷远点只与无穷远点相等
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ECPoint)) {
+            return false;
+        }
+        ECPoint other = (ECPoint) o;
+        return Objects.equals(this.getX(), other.getX()) && Objects.equals(this.getY(), other.getY());
+    }
+    
+    @Override
+    public int hashCode() {
+        return Objects.hash(this.getX(), this.getY());
+    }
+    
     /**
      * 将点按照给定进制转换为字符串
      *
@@ -84,8 +198,8 @@ public class ECPoint {
      * @return 指定进制表示的字符串
      */
     public String toString(int radix) {
-        BigInteger px = this.x;
-        BigInteger py = this.y;
+        BigInteger px = this.getX();
+        BigInteger py = this.getY();
         return ("(" + px.toString(radix) + ", " + py.toString(radix) + ")");
     }
     
@@ -98,22 +212,10 @@ public class ECPoint {
     public ECPoint plus(ECPoint p2) {
         if (isO(this)) return p2;
         if (isO(p2)) return this;
-        BigInteger L, x3, y3;
-        if (this.x.compareTo(p2.x) == 0) {
-            if (this.y.compareTo(p2.getY()) == 0) {
-                L = BigInteger.valueOf(3).multiply(this.x.pow(2)).add(a).multiply(this.y.multiply(BigInteger.valueOf(2)).modInverse(p));
-                x3 = L.pow(2).subtract(this.x.multiply(BigInteger.valueOf(2))).mod(p);
-                y3 = L.multiply(this.x.subtract(x3)).subtract(this.y).mod(p);
-                return new ECPoint(x3, y3);
-            } else {
-                return new ECPoint();
-            }
-        } else {
-            L = p2.y.subtract(this.y).multiply(p2.x.subtract(this.x).modInverse(p));
-            x3 = L.pow(2).subtract(this.x.add(p2.x)).mod(p);
-            y3 = L.multiply(this.x.subtract(x3)).subtract(this.y).mod(p);
-            return new ECPoint(x3, y3);
-        }
+        Jacobian r = new Jacobian();
+        r.set(new Affine(this));
+        r.add(new Affine(p2));
+        return new ECPoint(r);
     }
     
     /**
@@ -138,28 +240,69 @@ public class ECPoint {
     */
     
     /**
-     * NAFw算法
+     * NAFw算法：从低位开始，遇到为1的位即取以它为最低位的w位作为一个奇数窗口，并跳过这w位
      *
-     * @param k 倍数
+     * @param k 倍数的limb表示
      * @param w 窗口大小
-     * @return NAFw(k)
+     * @return 按位置存放的窗口值，digits[i]非零表示在第i位加上digits[i]倍的点
      */
-    private static ArrayList<Integer> NAFw(BigInteger k, int w) {
-        ArrayList<Integer> list = new ArrayList<>();
-        BigInteger ki, MASK = BigInteger.valueOf((1 << w) - 1);
-        while (k.compareTo(BigInteger.ONE) >= 0) {
-            if (k.and(BigInteger.ONE).intValue() == 1) {
-                ki = k.and(MASK);
-                k = k.subtract(ki);
-                list.add(ki.intValue());
-            } else {
-                list.add(0);
+    private static int[] NAFw(int[] k, int w) {
+        int len = 256;
+        while (len > 0 && bit(k, len - 1) == 0) {
+            len--;
+        }
+        int[] digits = new int[len];
+        for (int i = 0; i < len; ) {
+            if (bit(k, i) == 0) {
+                i++;
+                continue;
+            }
+            int d = 0;
+            for (int j = w - 1; j >= 0; j--) {
+                d = (d << 1) | bit(k, i + j);
             }
-            k = k.shiftRight(1);
+            digits[i] = d;
+            i += w;
         }
-        return list;
+        return digits;
+    }
+    
+    private static int bit(int[] k, int i) {
+        return i < 256 ? (k[i >>> 5] >>> (i & 31)) & 1 : 0;
     }
     
+    /**
+     * 奇数倍点表
+     *
+     * @param P 点
+     * @param w 窗口大小
+     * @return 表pList，pList[i] = iP (i = 1, 3, ..., 2^w - 1)，偶数位置为null
+     */
+    static Affine[] oddMultiples(Affine P, int w) {
+        Affine[] pList = new Affine[1 << w];
+        Affine P2 = new Affine();
+        Jacobian Q = new Jacobian();
+        Q.set(P);
+        Q.twice();
+        Q.toAffine(P2);
+        // 各奇数倍点先保留为Jacobian坐标，最后统一转换，只需一次求逆
+        int count = 1 << (w - 1);
+        Jacobian[] odd = new Jacobian[count];
+        Q.set(P);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                Q.add(P2);
+            }
+            odd[i] = new Jacobian();
+            odd[i].set(Q);
+        }
+        Affine[] affine = new Affine[count];
+        Jacobian.toAffineAll(odd, affine);
+        for (int i = 0; i < count; i++) {
+            pList[2 * i + 1] = affine[i];
+        }
+        return pList;
+    }
     
     /**
      * 椭圆曲线上的倍点运算
@@ -168,109 +311,123 @@ public class ECPoint {
      * @return 倍点结果
      */
     public ECPoint multiply(BigInteger k) {
-        ArrayList<Integer> kList = NAFw(k, 4);
-        ArrayList<ECPoint> pList = new ArrayList<>();
-        ECPoint P2 = this.plus(this), Q = new ECPoint(), tmp = this.plus(new ECPoint());
-        pList.add(null);
-        pList.add(this);
-        int ki = 0;
-        for (int i = 3; i <= (1 << 4) - 1; i += 2) {
-            pList.add(null);
-            tmp = tmp.plus(P2);
-            pList.add(tmp);
-        }
-        for (int i = kList.size() - 1; i >= 0; i--) {
-            Q = Q.plus(Q);
-            ki = kList.get(i);
-            if (ki != 0) {
-                Q = Q.plus(pList.get(ki));
+        int[] kList = NAFw(Fn.fromBigInteger(k), 4);
+        Affine[] pList = oddMultiples(new Affine(this), 4);
+        Jacobian Q = new Jacobian();
+        Q.setInfinity();
+        for (int i = kList.length - 1; i >= 0; i--) {
+            Q.twice();
+            if (kList[i] != 0) {
+                Q.add(pList[kList[i]]);
             }
         }
-        return Q;
+        return new ECPoint(Q);
     }
     
     /**
-     * 椭圆曲线上的取反运算
+     * 计算sG + tP。两个倍数的NAFw展开交错进行，共用同一条倍点链，
+     * G使用预计算的7位窗口奇数倍点表，P使用4位窗口
      *
-     * @return 点的取反结果
+     * @param s G的倍数
+     * @param t P的倍数
+     * @param P 点
+     * @return sG + tP
      */
-    private ECPoint negative() {
-        return new ECPoint(this.x, this.y.negate());
+    public static ECPoint multiplyGPlus(BigInteger s, BigInteger t, ECPoint P) {
+        return multiplyGPlus(Fn.fromBigInteger(s), Fn.fromBigInteger(t), P);
     }
     
     /**
-     * Lucas序列生成，用于点的压缩表示
+     * 计算sG + tP，倍数为Fn的limb形式
      *
-     * @param X 参数X
-     * @param Y 参数Y
-     * @param p 大素数模
-     * @param k 参数k
-     * @return Lucas序列结果
+     * @param s G的倍数
+     * @param t P的倍数
+     * @param P 点
+     * @return sG + tP
      */
-    private static BigInteger[] Lucas(BigInteger X, BigInteger Y, BigInteger p, BigInteger k) {
-        BigInteger delta = X.pow(2).subtract(Y.multiply(BigInteger.valueOf(4)));
-        BigInteger U = BigInteger.ONE, V = X.add(BigInteger.ZERO);
-        BigInteger Utmp;
-        int r = k.bitLength() - 1;
-        for (int i = r - 1; i >= 0; i--) {
-            Utmp = U.multiply(V).mod(p);
-            V = V.pow(2).add(delta.multiply(U.pow(2))).shiftRight(1).mod(p);
-            U = Utmp.add(BigInteger.ZERO);
-            if (k.testBit(i)) {
-                Utmp = X.multiply(U).add(V).shiftRight(1).mod(p);
-                V = X.multiply(V).add(delta.multiply(U)).shiftRight(1);
-                U = Utmp.add(BigInteger.ZERO);
-            }
-        }
-        return new BigInteger[]{U, V};
+    public static ECPoint multiplyGPlus(int[] s, int[] t, ECPoint P) {
+        Affine[] pList = TABLES.get(P, key -> oddMultiples(new Affine(key), KEY_W));
+        return interleave(s, FixedBase.oddMultiplesOfG(), FixedBase.ODD_W, t, pList, KEY_W);
     }
     
     /**
-     * 求解模素数的平方根，用于点的压缩表示
+     * 计算sP + tQ，P的奇数倍点表与multiplyGPlus共用缓存，适合P为长期公钥、Q为临时点的情形
      *
-     * @param g 待求平方根的数
-     * @param p 大素数模
-     * @return 模素数的平方根
+     * @param s P的倍数
+     * @param P 长期使用的点
+     * @param t Q的倍数
+     * @param Q 点
+     * @return sP + tQ
      */
-    private static BigInteger modroot(BigInteger g, BigInteger p) {
-        BigInteger z, y, u;
-        if (p.mod(BigInteger.valueOf(4)).compareTo(BigInteger.valueOf(3)) == 0) {
-            u = p.subtract(BigInteger.valueOf(3)).shiftRight(2);
-            y = g.modPow(u.add(BigInteger.ONE), p);
-            z = y.modPow(BigInteger.valueOf(2), p);
-            if (z.compareTo(g) == 0) {
-                return y;
-            } else {
-                return null;
-            }
-        } else if (p.mod(BigInteger.valueOf(8)).compareTo(BigInteger.valueOf(5)) == 0) {
-            u = p.subtract(BigInteger.valueOf(5)).shiftRight(3);
-            z = g.modPow(u.multiply(BigInteger.valueOf(2)).add(BigInteger.ONE), p);
-            if (z.mod(p).compareTo(BigInteger.ONE) == 0) {
-                y = g.modPow(u.add(BigInteger.ONE), p);
-                return y;
-            } else if (z.mod(p).compareTo(p.subtract(BigInteger.ONE)) == 0) {
-                y = g.multiply(BigInteger.valueOf(2)).multiply(g.multiply(BigInteger.valueOf(4)).modPow(u, p)).mod(p);
-                return y;
+    public static ECPoint multiplyPlus(int[] s, ECPoint P, int[] t, ECPoint Q) {
+        Affine[] pList = TABLES.get(P, key -> oddMultiples(new Affine(key), KEY_W));
+        return interleave(s, pList, KEY_W, t, oddMultiples(new Affine(Q), 4), 4);
+    }
+    
+    /**
+     * 公钥预计算表的缓存，可获取命中与未命中次数或清空
+     *
+     * @return 缓存
+     */
+    public static LruCache<ECPoint, ?> tableCache() {
+        return TABLES;
+    }
+    
+    /**
+     * 交错计算s * pList1[1] + t * pList2[1]
+     *
+     * @param s      倍数1
+     * @param pList1 点1的奇数倍点表
+     * @param w1     表1的窗口大小
+     * @param t      倍数2
+     * @param pList2 点2的奇数倍点表
+     * @param w2     表2的窗口大小
+     * @return 结果
+     */
+    static ECPoint interleave(int[] s, Affine[] pList1, int w1, int[] t, Affine[] pList2, int w2) {
+        int[] sList = NAFw(s, w1), tList = NAFw(t, w2);
+        Jacobian Q = new Jacobian();
+        Q.setInfinity();
+        for (int i = Math.max(sList.length, tList.length) - 1; i >= 0; i--) {
+            Q.twice();
+            if (i < sList.length && sList[i] != 0) {
+                Q.add(pList1[sList[i]]);
             }
-        } else if (p.mod(BigInteger.valueOf(8)).compareTo(BigInteger.ONE) == 0) {
-            u = p.subtract(BigInteger.valueOf(1)).shiftRight(3);
-            BigInteger X, U, V;
-            BigInteger[] lucas;
-            BigInteger Y = g.add(BigInteger.ZERO);
-            while (true) {
-                X = new BigInteger(p.bitLength(), new Random());
-                lucas = Lucas(X, Y, p, u.multiply(BigInteger.valueOf(4)).add(BigInteger.ONE));
-                U = lucas[0];
-                V = lucas[1];
-                if (V.modPow(BigInteger.valueOf(2), p).compareTo(Y.multiply(BigInteger.valueOf(4))) == 0) {
-                    return V.shiftRight(1).mod(p);
-                } else if ((U.mod(p).compareTo(BigInteger.ONE) != 0) && (U.mod(p).compareTo(p.subtract(BigInteger.ONE)) != 0)) {
-                    return null;
-                }
+            if (i < tList.length && tList[i] != 0) {
+                Q.add(pList2[tList[i]]);
             }
         }
-        return null;
+        return new ECPoint(Q);
+    }
+    
+    /**
+     * 基点G的倍点运算，使用共享的预计算表，只需点加不需倍点
+     *
+     * @param k 倍数
+     * @return kG
+     */
+    public static ECPoint multiplyG(BigInteger k) {
+        return FixedBase.multiply(k);
+    }
+    
+    /**
+     * 基点G的倍点运算，只返回x坐标。使用co-Z Montgomery阶梯，阶梯的运算序列不随k的各位变化，
+     * 比multiplyG慢，但不按k的窗口查表，也不按k的位分支
+     *
+     * @param k 倍数，模n后不为0
+     * @return kG的x坐标
+     */
+    public static BigInteger multiplyGX(BigInteger k) {
+        return Ladder.multiplyGX(k);
+    }
+    
+    /**
+     * 椭圆曲线上的取反运算
+     *
+     * @return 点的取反结果
+     */
+    private ECPoint negative() {
+        return new ECPoint(this.getX(), this.getY().negate());
     }
     
     /**
@@ -279,16 +436,14 @@ public class ECPoint {
      * @param x  点的x坐标
      * @param yb y的最右位
      * @return 点的一个y坐标
+     * @throws IllegalArgumentException x不是曲线上点的横坐标
      */
     public static BigInteger decompress(BigInteger x, int yb) {
-        BigInteger alpha = x.pow(3).add(a.multiply(x)).add(b).mod(p);
-        BigInteger beta = modroot(alpha, p);
-        boolean y0 = beta.testBit(0);
-        if ((y0 && yb == 1) || (!y0 && yb == 0)) {
-            return beta;
-        } else {
-            return p.subtract(beta);
+        int[] y = new int[8];
+        if (!PointCodec.decompress(new Fp(), Fp.fromBigInteger(x), yb & 1, y)) {
+            throw new IllegalArgumentException("x is not on the curve.");
         }
+        return Fp.toBigInteger(y);
     }
     
 }
@@ -0,0 +1,110 @@
+package sm2.support;
+
+import java.math.BigInteger;
+
+import static sm2.Curve.*;
+
+/**
+ * 基点G的预计算表，用于定点倍点运算
+ * <p>
+ * 将倍数k按4位一组拆成64个窗口，k = sum(d_i * 16^i)，预先存放所有
+ * d * 16^i * G (1 <= d <= 15)的仿射坐标，则kG只需至多64次混合点加，不需要倍点。
+ * 表共960个点，在第一次使用时构建，之后被所有线程共享且不再修改。
+ * <p>
+ * 另有一张G的奇数倍点表，供sG + tP的交错计算使用。
+ */
+final class FixedBase {
+    
+    static final int W = 4;
+    static final int WINDOWS = (256 + W - 1) / W;
+    
+    /**
+     * 双倍点运算sG + tP中G的窗口大小
+     */
+    static final int ODD_W = 7;
+    
+    private FixedBase() {
+    }
+    
+    /**
+     * 延迟初始化的表，类加载保证只构建一次且线程安全
+     */
+    private static final class Holder {
+        static final Affine[][] TABLE = build();
+    }
+    
+    /**
+     * G的奇数倍点表iG (i = 1, 3, ..., 127)，与TABLE分开延迟构建
+     */
+    private static final class OddHolder {
+        static final Affine[] ODD = ECPoint.oddMultiples(new Affine(new ECPoint(gx, gy)), ODD_W);
+    }
+    
+    static Affine[] oddMultiplesOfG() {
+        return OddHolder.ODD;
+    }
+    
+    /**
+     * 构建表：TABLE[i][d] = d * 16^i * G
+     *
+     * @return 预计算表
+     */
+    private static Affine[][] build() {
+        // 先由倍点得到各窗口的基点16^i * G，统一转换为仿射坐标
+        Jacobian[] bases = new Jacobian[WINDOWS];
+        Jacobian J = new Jacobian();
+        J.set(new Affine(new ECPoint(gx, gy)));
+        for (int i = 0; i < WINDOWS; i++) {
+            bases[i] = new Jacobian();
+            bases[i].set(J);
+            for (int j = 0; j < W; j++) {
+                J.twice();
+            }
+        }
+        Affine[] base = new Affine[WINDOWS];
+        Jacobian.toAffineAll(bases, base);
+        // 再由点加得到每个窗口的d * 16^i * G，全表只做一次求逆
+        int width = (1 << W) - 1;
+        Jacobian[] points = new Jacobian[WINDOWS * width];
+        for (int i = 0; i < WINDOWS; i++) {
+            J.set(base[i]);
+            for (int d = 1; d <= width; d++) {
+                if (d > 1) {
+                    J.add(base[i]);
+                }
+                points[i * width + d - 1] = new Jacobian();
+                points[i * width + d - 1].set(J);
+            }
+        }
+        Affine[] affine = new Affine[points.length];
+        Jacobian.toAffineAll(points, affine);
+        Affine[][] table = new Affine[WINDOWS][1 << W];
+        for (int i = 0; i < WINDOWS; i++) {
+            System.arraycopy(affine, i * width, table[i], 1, width);
+        }
+        return table;
+    }
+    
+    /**
+     * 计算kG
+     *
+     * @param k 倍数
+     * @return kG，坐标在读取时才转换为仿射坐标
+     */
+    static ECPoint multiply(BigInteger k) {
+        if (k.signum() < 0 || k.bitLength() > 256) {
+            k = k.mod(n);
+        }
+        int[] limbs = Fp.toLimbs(k);
+        Affine[][] table = Holder.TABLE;
+        Jacobian Q = new Jacobian();
+        Q.setInfinity();
+        for (int i = 0; i < WINDOWS; i++) {
+            int d = (limbs[i >>> 3] >>> ((i & 7) << 2)) & 0xF;
+            if (d != 0) {
+                Q.add(table[i][d]);
+            }
+        }
+        return new ECPoint(Q);
+    }
+}
@@ -0,0 +1,345 @@
+package sm2.support;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+import static sm2.Curve.n;
+
+/**
+ * 基点阶n上的定长运算
+ * <p>
+ * 元素与Fp相同，为8个32位limb组成的int数组，低位limb在前，取值在[0, n)内。
+ * n没有特殊形式，乘法使用Montgomery乘法：mul(r, a, b)得到a * b * 2^-256 mod n，
+ * 因此参与乘法的两个数中一个为Montgomery形式(a * 2^256 mod n)时，结果即为普通形式。
+ * 签名时私钥相关的常数只需转换一次，其余的数都保持普通形式。
+ * <p>
+ * 乘法与求逆使用实例内的临时数组，一个Fn实例不能被多个线程同时使用；
+ * 所有运算都允许结果数组与操作数数组相同。
+ */
+public final class Fn {
+    
+    private static final long M = 0xFFFFFFFFL;
+    
+    /**
+     * 阶n的limb表示
+     */
+    static final int[] N = Fp.toLimbs(n);
+    
+    /**
+     * -n^-1 mod 2^32
+     */
+    private static final long N0 = n0();
+    
+    /**
+     * 2^512 mod n，用于转换为Montgomery形式
+     */
+    private static final int[] RR = Fp.toLimbs(BigInteger.ONE.shiftLeft(512).mod(n));
+    
+    private static final int[] ONE = {1, 0, 0, 0, 0, 0, 0, 0};
+    
+    private final long[] t = new long[10];
+    private final int[] u = new int[8];
+    
+    private static long n0() {
+        int x = N[0];
+        // Newton迭代求N[0]模2^32的逆，每次迭代正确的位数翻倍
+        int inv = x;
+        for (int i = 0; i < 5; i++) {
+            inv *= 2 - x * inv;
+        }
+        return -inv & M;
+    }
+    
+    /**
+     * 将大整数转换为模n的元素
+     *
+     * @param x 大整数
+     * @return x mod n的limb表示
+     */
+    public static int[] fromBigInteger(BigInteger x) {
+        if (x.signum() < 0 || x.bitLength() > 256) {
+            x = x.mod(n);
+        }
+        int[] r = Fp.toLimbs(x);
+        // 2^256 < 2n，至多减一次n
+        reduceOnce(r);
+        return r;
+    }
+    
+    public static BigInteger toBigInteger(int[] a) {
+        return Fp.toBigInteger(a);
+    }
+    
+    /**
+     * 读入大端字节串表示的无符号整数
+     *
+     * @param r     结果
+     * @param bytes 字节串，可以带有前导0
+     * @return 数值小于n时为true，否则r的内容无意义
+     */
+    public static boolean decode(int[] r, byte[] bytes) {
+        for (int i = 0; i < 8; i++) {
+            r[i] = 0;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            int pos = bytes.length - 1 - i;
+            if (i >= 32) {
+                if (bytes[pos] != 0) {
+                    return false;
+                }
+                continue;
+            }
+            r[i >>> 2] |= (bytes[pos] & 0xFF) << ((i & 3) << 3);
+        }
+        return compare(r, N) < 0;
+    }
+    
+    /**
+     * 写出32字节大端整数
+     *
+     * @param a   元素
+     * @param out 输出
+     * @param off 输出的起始位置
+     */
+    public static void encode(int[] a, byte[] out, int off) {
+        for (int i = 0; i < 8; i++) {
+            int w = a[7 - i];
+            out[off + (i << 2)] = (byte) (w >>> 24);
+            out[off + (i << 2) + 1] = (byte) (w >>> 16);
+            out[off + (i << 2) + 2] = (byte) (w >>> 8);
+            out[off + (i << 2) + 3] = (byte) w;
+        }
+    }
+    
+    /**
+     * 写出32字节大端整数
+     *
+     * @param a   元素
+     * @param out 输出缓冲区，从当前位置写入
+     */
+    public static void encode(int[] a, ByteBuffer out) {
+        for (int i = 7; i >= 0; i--) {
+            int w = a[i];
+            out.put((byte) (w >>> 24));
+            out.put((byte) (w >>> 16));
+            out.put((byte) (w >>> 8));
+            out.put((byte) w);
+        }
+    }
+    
+    /**
+     * 读入32字节大端整数
+     *
+     * @param r     结果
+     * @param bytes 输入
+     * @param off   输入的起始位置
+     * @return 数值小于n时为true
+     */
+    public static boolean decode(int[] r, byte[] bytes, int off) {
+        for (int i = 0; i < 8; i++) {
+            int o = off + ((7 - i) << 2);
+            r[i] = (bytes[o] << 24) | ((bytes[o + 1] & 0xFF) << 16)
+                    | ((bytes[o + 2] & 0xFF) << 8) | (bytes[o + 3] & 0xFF);
+        }
+        return compare(r, N) < 0;
+    }
+    
+    /**
+     * 读入32字节大端整数
+     *
+     * @param r  结果
+     * @param in 输入缓冲区，从当前位置读取
+     * @return 数值小于n时为true
+     */
+    public static boolean decode(int[] r, ByteBuffer in) {
+        for (int i = 7; i >= 0; i--) {
+            r[i] = (in.get() << 24) | ((in.get() & 0xFF) << 16) | ((in.get() & 0xFF) << 8) | (in.get() & 0xFF);
+        }
+        return compare(r, N) < 0;
+    }
+    
+    /**
+     * 读入32字节大端整数并约减到[0, n)，用于杂凑值e
+     *
+     * @param r     结果
+     * @param bytes 32字节的字节串
+     */
+    public static void decodeReduce(int[] r, byte[] bytes) {
+        for (int i = 0; i < 8; i++) {
+            int off = (7 - i) << 2;
+            r[i] = (bytes[off] << 24) | ((bytes[off + 1] & 0xFF) << 16)
+                    | ((bytes[off + 2] & 0xFF) << 8) | (bytes[off + 3] & 0xFF);
+        }
+        reduceOnce(r);
+    }
+    
+    public static boolean isZero(int[] a) {
+        return Fp.isZero(a);
+    }
+    
+    public static boolean equals(int[] a, int[] b) {
+        return Fp.equals(a, b);
+    }
+    
+    private static int compare(int[] a, int[] b) {
+        for (int i = 7; i >= 0; i--) {
+            if (a[i] != b[i]) {
+                return Integer.compareUnsigned(a[i], b[i]);
+            }
+        }
+        return 0;
+    }
+    
+    private static void reduceOnce(int[] r) {
+        if (compare(r, N) >= 0) {
+            subN(r);
+        }
+    }
+    
+    /**
+     * r = a + b mod n
+     */
+    public static void add(int[] r, int[] a, int[] b) {
+        long c = 0;
+        for (int i = 0; i < 8; i++) {
+            c += (a[i] & M) + (b[i] & M);
+            r[i] = (int) c;
+            c >>>= 32;
+        }
+        if (c != 0 || compare(r, N) >= 0) {
+            subN(r);
+        }
+    }
+    
+    /**
+     * r = a - b mod n
+     */
+    public static void sub(int[] r, int[] a, int[] b) {
+        long c = 0;
+        for (int i = 0; i < 8; i++) {
+            c += (a[i] & M) - (b[i] & M);
+            r[i] = (int) c;
+            c >>= 32;
+        }
+        if (c != 0) {
+            c = 0;
+            for (int i = 0; i < 8; i++) {
+                c += (r[i] & M) + (N[i] & M);
+                r[i] = (int) c;
+                c >>>= 32;
+            }
+        }
+    }
+    
+    private static void subN(int[] r) {
+        long c = 0;
+        for (int i = 0; i < 8; i++) {
+            c += (r[i] & M) - (N[i] & M);
+            r[i] = (int) c;
+            c >>= 32;
+        }
+    }
+    
+    /**
+     * Montgomery乘法，r = a * b * 2^-256 mod n
+     */
+    public void mul(int[] r, int[] a, int[] b) {
+        long[] t = this.t;
+        for (int i = 0; i < 10; i++) {
+            t[i] = 0;
+        }
+        for (int i = 0; i < 8; i++) {
+            long ai = a[i] & M;
+            long c = 0;
+            for (int j = 0; j < 8; j++) {
+                c += t[j] + ai * (b[j] & M);
+                t[j] = c & M;
+                c >>>= 32;
+            }
+            c += t[8];
+            t[8] = c & M;
+            t[9] = c >>> 32;
+            // 加上m * n使最低字为0，再整体右移一个字
+            long m = (t[0] * N0) & M;
+            c = (t[0] + m * (N[0] & M)) >>> 32;
+            for (int j = 1; j < 8; j++) {
+                c += t[j] + m * (N[j] & M);
+                t[j - 1] = c & M;
+                c >>>= 32;
+            }
+            c += t[8];
+            t[7] = c & M;
+            t[8] = t[9] + (c >>> 32);
+        }
+        for (int i = 0; i < 8; i++) {
+            r[i] = (int) t[i];
+        }
+        if (t[8] != 0 || compare(r, N) >= 0) {
+            subN(r);
+        }
+    }
+    
+    /**
+     * 转换为Montgomery形式，r = a * 2^256 mod n
+     */
+    public void toMont(int[] r, int[] a) {
+        mul(r, a, RR);
+    }
+    
+    /**
+     * 由Montgomery形式转换回普通形式，r = a * 2^-256 mod n
+     */
+    public void fromMont(int[] r, int[] a) {
+        mul(r, a, ONE);
+    }
+    
+    /**
+     * Montgomery形式下求逆，r = a^(n-2)，由费马小定理即为a^-1
+     *
+     * @param r 结果，Montgomery形式
+     * @param a 非零元素，Montgomery形式
+     */
+    public void inv(int[] r, int[] a) {
+        if (isZero(a)) {
+            throw new ArithmeticException("BigInteger not invertible.");
+        }
+        int[] u = this.u;
+        // 1的Montgomery形式
+        toMont(u, ONE);
+        BigInteger e = n.subtract(BigInteger.TWO);
+        int[] base = a.clone();
+        for (int i = e.bitLength() - 1; i >= 0; i--) {
+            mul(u, u, u);
+            if (e.testBit(i)) {
+                mul(u, u, base);
+            }
+        }
+        Fp.copy(r, u);
+    }
+}
+
+class FnTest {
+    public static void main(String[] args) {
+        java.util.Random random = new java.util.Random(1);
+        Fn f = new Fn();
+        int bad = 0;
+        for (int i = 0; i < 1000; i++) {
+            BigInteger a = new BigInteger(256, random).mod(n), b = new BigInteger(256, random).mod(n);
+            int[] x = Fn.fromBigInteger(a), y = Fn.fromBigInteger(b), r = new int[8];
+            Fn.add(r, x, y);
+            bad += Fn.toBigInteger(r).equals(a.add(b).mod(n)) ? 0 : 1;
+            Fn.sub(r, x, y);
+            bad += Fn.toBigInteger(r).equals(a.subtract(b).mod(n)) ? 0 : 1;
+            f.toMont(r, x);
+            f.mul(r, r, y);
+            bad += Fn.toBigInteger(r).equals(a.multiply(b).mod(n)) ? 0 : 1;
+            if (a.signum() != 0) {
+                f.toMont(r, x);
+                f.inv(r, r);
+                f.fromMont(r, r);
+                bad += Fn.toBigInteger(r).equals(a.modInverse(n)) ? 0 : 1;
+            }
+        }
+        System.out.println("Fn bad=" + bad);
+    }
+}
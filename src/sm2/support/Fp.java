@@ -0,0 +1,447 @@
+package sm2.support;
+
+import java.math.BigInteger;
+
+import static sm2.Curve.p;
+
+/**
+ * SM2推荐素数p上的定长域运算
+ * <p>
+ * 域元素为8个32位limb组成的int数组，低位limb在前，取值始终在[0, p)内。
+ * 由于p = 2^256 - 2^224 - 2^96 + 2^64 - 1，有2^256 ≡ 2^224 + 2^96 - 2^64 + 1 (mod p)，
+ * 乘积的高位字可以直接折叠回低位，不需要通用的除法取模。
+ * <p>
+ * 乘法、平方和求逆使用实例内的临时数组，因此一个Fp实例不能被多个线程同时使用；
+ * 所有运算都允许结果数组与操作数数组相同。
+ */
+public final class Fp {
+    
+    private static final long M = 0xFFFFFFFFL;
+    
+    /**
+     * 素数p的limb表示
+     */
+    static final int[] P = toLimbs(p);
+    
+    /**
+     * p - 2，费马求逆的指数
+     */
+    private static final int[] P_2 = toLimbs(p.subtract(BigInteger.TWO));
+    
+    /**
+     * (p + 1) / 4
+     */
+    private static final BigInteger SQRT_EXP = p.add(BigInteger.ONE).shiftRight(2);
+    
+    private final long[] t = new long[16];
+    private final int[] u = new int[8];
+    private final int[] v = new int[8];
+    private final int[] x1 = new int[8];
+    private final int[] x2 = new int[8];
+    
+    /**
+     * 将大整数转换为域元素
+     *
+     * @param x 大整数
+     * @return x mod p的limb表示
+     */
+    public static int[] fromBigInteger(BigInteger x) {
+        return toLimbs(x.mod(p));
+    }
+    
+    /**
+     * 取大整数的低256位
+     *
+     * @param x 非负大整数
+     * @return limb表示
+     */
+    static int[] toLimbs(BigInteger x) {
+        int[] r = new int[8];
+        for (int i = 0; i < 8; i++) {
+            r[i] = x.intValue();
+            x = x.shiftRight(32);
+        }
+        return r;
+    }
+    
+    /**
+     * 将域元素转换为大整数
+     *
+     * @param a 域元素
+     * @return 对应的大整数
+     */
+    public static BigInteger toBigInteger(int[] a) {
+        byte[] bytes = new byte[32];
+        for (int i = 0; i < 8; i++) {
+            int w = a[7 - i];
+            bytes[i << 2] = (byte) (w >>> 24);
+            bytes[(i << 2) + 1] = (byte) (w >>> 16);
+            bytes[(i << 2) + 2] = (byte) (w >>> 8);
+            bytes[(i << 2) + 3] = (byte) w;
+        }
+        return new BigInteger(1, bytes);
+    }
+    
+    /**
+     * 写出32字节大端整数
+     *
+     * @param a   域元素
+     * @param out 输出
+     * @param off 输出的起始位置
+     */
+    public static void encode(int[] a, byte[] out, int off) {
+        for (int i = 0; i < 8; i++) {
+            int w = a[7 - i];
+            out[off + (i << 2)] = (byte) (w >>> 24);
+            out[off + (i << 2) + 1] = (byte) (w >>> 16);
+            out[off + (i << 2) + 2] = (byte) (w >>> 8);
+            out[off + (i << 2) + 3] = (byte) w;
+        }
+    }
+    
+    /**
+     * 读入32字节大端整数
+     *
+     * @param r     结果
+     * @param bytes 输入
+     * @param off   输入的起始位置
+     * @return 数值小于p时为true
+     */
+    public static boolean decode(int[] r, byte[] bytes, int off) {
+        for (int i = 0; i < 8; i++) {
+            int o = off + ((7 - i) << 2);
+            r[i] = (bytes[o] << 24) | ((bytes[o + 1] & 0xFF) << 16)
+                    | ((bytes[o + 2] & 0xFF) << 8) | (bytes[o + 3] & 0xFF);
+        }
+        return compare(r, P) < 0;
+    }
+    
+    public static void copy(int[] r, int[] a) {
+        System.arraycopy(a, 0, r, 0, 8);
+    }
+    
+    public static void setOne(int[] r) {
+        r[0] = 1;
+        for (int i = 1; i < 8; i++) {
+            r[i] = 0;
+        }
+    }
+    
+    public static boolean isZero(int[] a) {
+        int acc = 0;
+        for (int i = 0; i < 8; i++) {
+            acc |= a[i];
+        }
+        return acc == 0;
+    }
+    
+    public static boolean equals(int[] a, int[] b) {
+        int acc = 0;
+        for (int i = 0; i < 8; i++) {
+            acc |= a[i] ^ b[i];
+        }
+        return acc == 0;
+    }
+    
+    /**
+     * 比较两个256位无符号整数
+     *
+     * @return a < b时为负数，相等为0，否则为正数
+     */
+    private static int compare(int[] a, int[] b) {
+        for (int i = 7; i >= 0; i--) {
+            if (a[i] != b[i]) {
+                return Integer.compareUnsigned(a[i], b[i]);
+            }
+        }
+        return 0;
+    }
+    
+    /**
+     * r = a + b mod p
+     */
+    public static void add(int[] r, int[] a, int[] b) {
+        long c = 0;
+        for (int i = 0; i < 8; i++) {
+            c += (a[i] & M) + (b[i] & M);
+            r[i] = (int) c;
+            c >>>= 32;
+        }
+        reduceOnce(r, c);
+    }
+    
+    /**
+     * r = a - b mod p
+     */
+    public static void sub(int[] r, int[] a, int[] b) {
+        long c = 0;
+        for (int i = 0; i < 8; i++) {
+            c += (a[i] & M) - (b[i] & M);
+            r[i] = (int) c;
+            c >>= 32;
+        }
+        // 有借位时c = -1，用掩码加回p，不按借位分支
+        int mask = (int) c;
+        c = 0;
+        for (int i = 0; i < 8; i++) {
+            c += (r[i] & M) + (P[i] & mask & M);
+            r[i] = (int) c;
+            c >>>= 32;
+        }
+    }
+    
+    /**
+     * r = -a mod p
+     */
+    public static void neg(int[] r, int[] a) {
+        if (isZero(a)) {
+            copy(r, a);
+            return;
+        }
+        long c = 0;
+        for (int i = 0; i < 8; i++) {
+            c += (P[i] & M) - (a[i] & M);
+            r[i] = (int) c;
+            c >>= 32;
+        }
+    }
+    
+    /**
+     * r = a / 2 mod p
+     */
+    public static void half(int[] r, int[] a) {
+        long c = 0;
+        if ((a[0] & 1) != 0) {
+            for (int i = 0; i < 8; i++) {
+                c += (a[i] & M) + (P[i] & M);
+                r[i] = (int) c;
+                c >>>= 32;
+            }
+        } else {
+            copy(r, a);
+        }
+        for (int i = 0; i < 7; i++) {
+            r[i] = (r[i] >>> 1) | (r[i + 1] << 31);
+        }
+        r[7] = (r[7] >>> 1) | ((int) c << 31);
+    }
+    
+    /**
+     * 值为carry * 2^256 + r且小于2p时约减到[0, p)：先算出r - p的借位，再用掩码决定是否减去p，不按数值分支
+     *
+     * @param r     低256位
+     * @param carry 第256位，0或1
+     */
+    private static void reduceOnce(int[] r, long carry) {
+        long b = 0;
+        for (int i = 0; i < 8; i++) {
+            b += (r[i] & M) - (P[i] & M);
+            b >>= 32;
+        }
+        // 有进位或r >= p(无借位，b = 0)时减去p
+        int mask = -(int) (carry | (b + 1));
+        b = 0;
+        for (int i = 0; i < 8; i++) {
+            b += (r[i] & M) - (P[i] & mask & M);
+            r[i] = (int) b;
+            b >>= 32;
+        }
+    }
+    
+    /**
+     * r = a * b mod p
+     */
+    public void mul(int[] r, int[] a, int[] b) {
+        long[] t = this.t;
+        for (int i = 0; i < 16; i++) {
+            t[i] = 0;
+        }
+        for (int i = 0; i < 8; i++) {
+            long ai = a[i] & M;
+            long c = 0;
+            for (int j = 0; j < 8; j++) {
+                // (2^32-1)^2 + 2(2^32-1) = 2^64-1，按无符号数计算不会溢出
+                c += t[i + j] + ai * (b[j] & M);
+                t[i + j] = c & M;
+                c >>>= 32;
+            }
+            t[i + 8] = c;
+        }
+        reduce(r, t);
+    }
+    
+    /**
+     * r = a^2 mod p
+     * <p>
+     * 交叉项a[i] * a[j] (i < j)只算一次，整体乘2后再加上对角项a[i]^2，乘法次数为36次而不是64次
+     */
+    public void sqr(int[] r, int[] a) {
+        long[] t = this.t;
+        for (int i = 0; i < 16; i++) {
+            t[i] = 0;
+        }
+        for (int i = 0; i < 7; i++) {
+            long ai = a[i] & M;
+            long c = 0;
+            for (int j = i + 1; j < 8; j++) {
+                c += t[i + j] + ai * (a[j] & M);
+                t[i + j] = c & M;
+                c >>>= 32;
+            }
+            t[i + 8] = c;
+        }
+        long c = 0;
+        for (int i = 0; i < 8; i++) {
+            long ai = a[i] & M;
+            long d = ai * ai;
+            c += (t[2 * i] << 1) + (d & M);
+            t[2 * i] = c & M;
+            c >>>= 32;
+            c += (t[2 * i + 1] << 1) + (d >>> 32);
+            t[2 * i + 1] = c & M;
+            c >>>= 32;
+        }
+        reduce(r, t);
+    }
+    
+    /**
+     * 将512位乘积约减到[0, p)
+     * <p>
+     * 第k个字(k >= 8)的权为2^(32(k-8)) * 2^256，折叠后分别加到第k-1、k-5、k-8个字并从第k-6个字减去。
+     * 各字用有符号long累加，最后统一进位，溢出的进位按同样规则再折叠一次。
+     *
+     * @param r 结果
+     * @param t 16个32位字的乘积，会被破坏
+     */
+    private static void reduce(int[] r, long[] t) {
+        for (int k = 15; k >= 8; k--) {
+            long w = t[k];
+            t[k - 1] += w;
+            t[k - 5] += w;
+            t[k - 6] -= w;
+            t[k - 8] += w;
+        }
+        long c = carry(t);
+        while (c != 0) {
+            t[7] += c;
+            t[3] += c;
+            t[2] -= c;
+            t[0] += c;
+            c = carry(t);
+        }
+        for (int i = 0; i < 8; i++) {
+            r[i] = (int) t[i];
+        }
+        reduceOnce(r, 0);
+    }
+    
+    private static long carry(long[] t) {
+        long c = 0;
+        for (int i = 0; i < 8; i++) {
+            c += t[i];
+            t[i] = c & M;
+            c >>= 32;
+        }
+        return c;
+    }
+    
+    /**
+     * r = a^-1 mod p，使用二进制扩展欧几里得算法
+     *
+     * @param r 结果
+     * @param a 非零域元素
+     */
+    public void inv(int[] r, int[] a) {
+        if (isZero(a)) {
+            throw new ArithmeticException("BigInteger not invertible.");
+        }
+        int[] u = this.u, v = this.v, x1 = this.x1, x2 = this.x2;
+        copy(u, a);
+        copy(v, P);
+        setOne(x1);
+        for (int i = 0; i < 8; i++) {
+            x2[i] = 0;
+        }
+        while (!isOne(u) && !isOne(v)) {
+            while ((u[0] & 1) == 0) {
+                shiftRight(u);
+                half(x1, x1);
+            }
+            while ((v[0] & 1) == 0) {
+                shiftRight(v);
+                half(x2, x2);
+            }
+            if (compare(u, v) >= 0) {
+                subPlain(u, v);
+                sub(x1, x1, x2);
+            } else {
+                subPlain(v, u);
+                sub(x2, x2, x1);
+            }
+        }
+        copy(r, isOne(u) ? x1 : x2);
+    }
+    
+    /**
+     * 平方根。p ≡ 3 (mod 4)，a为平方剩余时a^((p+1)/4)即为其一个平方根，不需要通用的模平方根算法。
+     * 模幂交给BigInteger.modPow，它在HotSpot上有Montgomery乘法的内建实现，比逐次调用sqr的加法链更快
+     *
+     * @param r 结果
+     * @param a 域元素
+     * @return a是否为平方剩余，为false时r的内容无意义
+     */
+    public boolean sqrt(int[] r, int[] a) {
+        int[] y = toLimbs(toBigInteger(a).modPow(SQRT_EXP, p));
+        int[] t = this.u;
+        sqr(t, y);
+        if (!equals(t, a)) {
+            return false;
+        }
+        copy(r, y);
+        return true;
+    }
+    
+    /**
+     * r = a^(p-2) = a^-1 mod p，由费马小定理求逆。
+     * 指数是固定的常数，平方与乘法的序列与a无关，用于不希望求逆的耗时随数值变化的场合；比inv慢
+     *
+     * @param r 结果
+     * @param a 非零域元素，为0时结果为0
+     */
+    public void invFermat(int[] r, int[] a) {
+        int[] u = this.u, base = this.v;
+        copy(base, a);
+        setOne(u);
+        for (int i = 255; i >= 0; i--) {
+            sqr(u, u);
+            if (((P_2[i >>> 5] >>> (i & 31)) & 1) != 0) {
+                mul(u, u, base);
+            }
+        }
+        copy(r, u);
+    }
+    
+    private static boolean isOne(int[] a) {
+        int acc = a[0] ^ 1;
+        for (int i = 1; i < 8; i++) {
+            acc |= a[i];
+        }
+        return acc == 0;
+    }
+    
+    private static void shiftRight(int[] a) {
+        for (int i = 0; i < 7; i++) {
+            a[i] = (a[i] >>> 1) | (a[i + 1] << 31);
+        }
+        a[7] >>>= 1;
+    }
+    
+    private static void subPlain(int[] a, int[] b) {
+        long c = 0;
+        for (int i = 0; i < 8; i++) {
+            c += (a[i] & M) - (b[i] & M);
+            a[i] = (int) c;
+            c >>= 32;
+        }
+    }
+}
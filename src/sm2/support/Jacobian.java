@@ -0,0 +1,219 @@
+package sm2.support;
+
+/**
+ * Jacobian坐标下的可变点(X, Y, Z)，对应仿射点(X/Z^2, Y/Z^3)，Z = 0表示无穷远点
+ * <p>
+ * 倍点利用SM2曲线a = -3的特点，加法为Jacobian点与仿射点的混合加法，两者都不需要求逆；
+ * 只有转换回仿射坐标时才做一次求逆。每个实例带有自己的Fp工作区与临时变量，
+ * 因此不能被多个线程同时使用。
+ */
+final class Jacobian {
+    
+    final int[] X = new int[8];
+    final int[] Y = new int[8];
+    final int[] Z = new int[8];
+    
+    private final Fp f = new Fp();
+    private final int[] t1 = new int[8];
+    private final int[] t2 = new int[8];
+    private final int[] t3 = new int[8];
+    private final int[] t4 = new int[8];
+    
+    /**
+     * 构造无穷远点
+     */
+    Jacobian() {
+    }
+    
+    boolean isInfinity() {
+        return Fp.isZero(this.Z);
+    }
+    
+    void setInfinity() {
+        Fp.setOne(this.X);
+        Fp.setOne(this.Y);
+        for (int i = 0; i < 8; i++) {
+            this.Z[i] = 0;
+        }
+    }
+    
+    void set(Affine q) {
+        if (q.inf) {
+            setInfinity();
+            return;
+        }
+        Fp.copy(this.X, q.x);
+        Fp.copy(this.Y, q.y);
+        Fp.setOne(this.Z);
+    }
+    
+    void set(Jacobian q) {
+        Fp.copy(this.X, q.X);
+        Fp.copy(this.Y, q.Y);
+        Fp.copy(this.Z, q.Z);
+    }
+    
+    /**
+     * 倍点，a = -3时的dbl-2001-b公式：
+     * delta = Z^2, gamma = Y^2, beta = X*gamma, alpha = 3(X-delta)(X+delta),
+     * X3 = alpha^2 - 8beta, Z3 = (Y+Z)^2 - gamma - delta, Y3 = alpha(4beta - X3) - 8gamma^2
+     */
+    void twice() {
+        if (isInfinity()) {
+            return;
+        }
+        Fp f = this.f;
+        int[] delta = t1, gamma = t2, beta = t3, alpha = t4;
+        f.sqr(delta, Z);
+        f.sqr(gamma, Y);
+        f.mul(beta, X, gamma);
+        // Z3 = (Y + Z)^2 - gamma - delta
+        Fp.add(Z, Y, Z);
+        f.sqr(Z, Z);
+        Fp.sub(Z, Z, gamma);
+        Fp.sub(Z, Z, delta);
+        // alpha = 3(X - delta)(X + delta)，此处借用Y作临时变量
+        Fp.sub(Y, X, delta);
+        Fp.add(alpha, X, delta);
+        f.mul(alpha, alpha, Y);
+        Fp.add(Y, alpha, alpha);
+        Fp.add(alpha, alpha, Y);
+        // X3 = alpha^2 - 8beta
+        Fp.add(beta, beta, beta);
+        Fp.add(beta, beta, beta);
+        f.sqr(X, alpha);
+        Fp.sub(X, X, beta);
+        Fp.sub(X, X, beta);
+        // Y3 = alpha(4beta - X3) - 8gamma^2
+        Fp.sub(beta, beta, X);
+        f.mul(Y, alpha, beta);
+        f.sqr(gamma, gamma);
+        Fp.add(gamma, gamma, gamma);
+        Fp.add(gamma, gamma, gamma);
+        Fp.add(gamma, gamma, gamma);
+        Fp.sub(Y, Y, gamma);
+    }
+    
+    /**
+     * 混合点加 this = this + q，q为仿射点：
+     * U2 = x2*Z1^2, S2 = y2*Z1^3, H = U2 - X1, r = S2 - Y1,
+     * X3 = r^2 - H^3 - 2X1H^2, Y3 = r(X1H^2 - X3) - Y1H^3, Z3 = Z1*H
+     *
+     * @param q 仿射点
+     */
+    void add(Affine q) {
+        if (q.inf) {
+            return;
+        }
+        if (isInfinity()) {
+            set(q);
+            return;
+        }
+        Fp f = this.f;
+        int[] h = t1, r = t2, hh = t3, v = t4;
+        f.sqr(hh, Z);
+        f.mul(h, q.x, hh);
+        Fp.sub(h, h, X);
+        f.mul(r, hh, Z);
+        f.mul(r, r, q.y);
+        Fp.sub(r, r, Y);
+        if (Fp.isZero(h)) {
+            if (Fp.isZero(r)) {
+                twice();
+            } else {
+                setInfinity();
+            }
+            return;
+        }
+        // Z3 = Z1 * H
+        f.mul(Z, Z, h);
+        // hh = H^2, v = X1 * H^2, h = H^3
+        f.sqr(hh, h);
+        f.mul(v, X, hh);
+        f.mul(h, h, hh);
+        // X3 = r^2 - H^3 - 2V
+        f.sqr(X, r);
+        Fp.sub(X, X, h);
+        Fp.sub(X, X, v);
+        Fp.sub(X, X, v);
+        // Y3 = r(V - X3) - Y1 * H^3
+        f.mul(h, Y, h);
+        Fp.sub(v, v, X);
+        f.mul(Y, r, v);
+        Fp.sub(Y, Y, h);
+    }
+    
+    /**
+     * 转换为仿射坐标，需要一次求逆
+     *
+     * @param out 仿射点
+     */
+    void toAffine(Affine out) {
+        if (isInfinity()) {
+            out.inf = true;
+            return;
+        }
+        f.inv(t1, Z);
+        f.sqr(t2, t1);
+        f.mul(out.x, X, t2);
+        f.mul(t2, t2, t1);
+        f.mul(out.y, Y, t2);
+        out.inf = false;
+    }
+    
+    /**
+     * 批量转换为仿射坐标，使用Montgomery技巧：先求所有Z的前缀积，只对总积求一次逆，
+     * 再由后向前逐个剥离出每个Z的逆，共一次求逆与3(N - 1)次乘法。无穷远点不参与乘积
+     *
+     * @param in  Jacobian点
+     * @param out 仿射点，与in一一对应，为null的位置会新建
+     */
+    static void toAffineAll(Jacobian[] in, Affine[] out) {
+        int count = in.length;
+        Fp f = new Fp();
+        int[][] acc = new int[count][];
+        // prev[i]为i之前最近一个非无穷远点的位置
+        int[] prev = new int[count];
+        int last = -1;
+        for (int i = 0; i < count; i++) {
+            if (in[i].isInfinity()) {
+                continue;
+            }
+            acc[i] = new int[8];
+            if (last < 0) {
+                Fp.copy(acc[i], in[i].Z);
+            } else {
+                f.mul(acc[i], acc[last], in[i].Z);
+            }
+            prev[i] = last;
+            last = i;
+        }
+        int[] inv = new int[8], zInv = new int[8], t = new int[8];
+        if (last >= 0) {
+            f.inv(inv, acc[last]);
+        }
+        for (int i = count - 1; i >= 0; i--) {
+            if (out[i] == null) {
+                out[i] = new Affine();
+            }
+            if (acc[i] == null) {
+                out[i].inf = true;
+                continue;
+            }
+            // inv此时为Z_0 * ... * Z_i的逆，乘上Z_0 * ... * Z_(i-1)即为Z_i的逆
+            int j = prev[i];
+            if (j >= 0) {
+                f.mul(zInv, inv, acc[j]);
+                f.mul(inv, inv, in[i].Z);
+            } else {
+                Fp.copy(zInv, inv);
+            }
+            Jacobian J = in[i];
+            f.sqr(t, zInv);
+            f.mul(out[i].x, J.X, t);
+            f.mul(t, t, zInv);
+            f.mul(out[i].y, J.Y, t);
+            out[i].inf = false;
+        }
+    }
+}
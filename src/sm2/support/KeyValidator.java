@@ -0,0 +1,132 @@
+package sm2.support;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+import static sm2.Curve.p;
+
+/**
+ * 公钥验证(GB/T 32918.1第6.2.1节)
+ * <p>
+ * 推荐曲线的余因子为1，曲线上除无穷远点外的点的阶都是n，因此只需检查不是无穷远点、
+ * 坐标在[0, p)内以及满足曲线方程，不需要验证nP = O。曲线方程用Fp的定长运算检查，只有两次乘法和一次平方。
+ * <p>
+ * 对端的公钥通常以编码形式反复到达，decode以编码为键缓存验证通过的点，同一对端再次出现时不必重新解码与验证。
+ * 验证失败的编码不会被缓存。
+ */
+public final class KeyValidator {
+    
+    /**
+     * 以编码为键的已验证公钥缓存，容量可由系统属性sm2.keyCacheSize设置
+     */
+    private static final LruCache<ByteBuffer, ECPoint> CACHE = new LruCache<>(Integer.getInteger("sm2.keyCacheSize", 4096));
+    
+    private KeyValidator() {
+    }
+    
+    /**
+     * 验证公钥
+     *
+     * @param P 点
+     * @return 是否为合法的公钥
+     */
+    public static boolean isValid(ECPoint P) {
+        if (ECPoint.isO(P)) {
+            return false;
+        }
+        BigInteger x = P.getX(), y = P.getY();
+        if (x.signum() < 0 || x.compareTo(p) >= 0 || y.signum() < 0 || y.compareTo(p) >= 0) {
+            return false;
+        }
+        return PointCodec.onCurve(new Fp(), Fp.toLimbs(x), Fp.toLimbs(y));
+    }
+    
+    /**
+     * 解码并验证SEC1编码的公钥，结果按编码缓存
+     *
+     * @param encoded 编码
+     * @return 公钥
+     * @throws IllegalArgumentException 编码不合法，或不是合法的公钥
+     */
+    public static ECPoint decode(byte[] encoded) {
+        return decode(encoded, 0, encoded.length);
+    }
+    
+    /**
+     * 解码并验证SEC1编码的公钥，结果按编码缓存
+     *
+     * @param in  输入
+     * @param off 编码的起始位置
+     * @param len 编码的字节数
+     * @return 公钥
+     * @throws IllegalArgumentException 编码不合法，或不是合法的公钥
+     */
+    public static ECPoint decode(byte[] in, int off, int len) {
+        // 查找时直接包装输入，只有放入缓存时才复制
+        ECPoint P = CACHE.getIfPresent(ByteBuffer.wrap(in, off, len));
+        if (P != null) {
+            return P;
+        }
+        P = PointCodec.decode(in, off, len);
+        if (ECPoint.isO(P)) {
+            throw new IllegalArgumentException("public key is the point at infinity.");
+        }
+        byte[] key = new byte[len];
+        System.arraycopy(in, off, key, 0, len);
+        CACHE.put(ByteBuffer.wrap(key), P);
+        return P;
+    }
+    
+    /**
+     * 已验证公钥的缓存，可获取命中与未命中次数或清空
+     *
+     * @return 缓存
+     */
+    public static LruCache<ByteBuffer, ?> cache() {
+        return CACHE;
+    }
+}
+
+class KeyValidatorTest {
+    public static void main(String[] args) {
+        java.util.Random random = new java.util.Random(1);
+        int bad = 0;
+        ECPoint[] keys = new ECPoint[100];
+        byte[][] encoded = new byte[keys.length][];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = ECPoint.multiplyG(new BigInteger(256, random));
+            PointCodec.Format format = i % 2 == 0 ? PointCodec.Format.COMPRESSED : PointCodec.Format.UNCOMPRESSED;
+            encoded[i] = PointCodec.encode(keys[i], format);
+            bad += KeyValidator.isValid(keys[i]) ? 0 : 1;
+            bad += KeyValidator.isValid(new ECPoint(keys[i].getX(), keys[i].getY().add(BigInteger.ONE))) ? 1 : 0;
+            bad += KeyValidator.isValid(new ECPoint(keys[i].getX().add(p), keys[i].getY())) ? 1 : 0;
+        }
+        bad += KeyValidator.isValid(new ECPoint()) ? 1 : 0;
+        for (int r = 0; r < 2; r++) {
+            for (int i = 0; i < keys.length; i++) {
+                bad += KeyValidator.decode(encoded[i]).equals(keys[i]) ? 0 : 1;
+            }
+        }
+        try {
+            KeyValidator.decode(new byte[]{0});
+            bad++;
+        } catch (IllegalArgumentException e) {
+            // 预期
+        }
+        System.out.println("validator bad=" + bad + ", " + KeyValidator.cache());
+        
+        for (int r = 0; r < 3; r++) {
+            long t0 = System.nanoTime();
+            for (int i = 0; i < 100000; i++) {
+                KeyValidator.isValid(keys[i % keys.length]);
+            }
+            long t1 = System.nanoTime();
+            for (int i = 0; i < 100000; i++) {
+                KeyValidator.decode(encoded[i % keys.length]);
+            }
+            long t2 = System.nanoTime();
+            System.out.printf("isValid: %.0f/s, cached decode: %.0f/s%n",
+                    1e5 / ((t1 - t0) / 1e9), 1e5 / ((t2 - t1) / 1e9));
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package sm2.support;
+
+import java.math.BigInteger;
+
+import static sm2.Curve.*;
+
+/**
+ * 只计算x坐标的co-Z Montgomery阶梯倍点
+ * <p>
+ * 阶梯中的两个点R0 = jP与R1 = (j + 1)P始终保持相同的Z坐标(co-Z)，每一位固定做一次
+ * XYcZ_addC与一次XYcZ_add，不论该位为0还是1，运算序列都相同；两点的交换用掩码完成，不依赖分支。
+ * 倍数先被规整为k + n或k + 2n，使其恰好为257位，循环次数与k的大小无关。
+ * 全程不求逆，最后由P的仿射坐标反推出Z，用固定指数的费马小定理只做一次求逆，且只恢复x坐标。
+ * <p>
+ * 这并不是严格的常数时间实现：Fp乘法后的约减仍有依赖数值的进位折叠循环，k与BigInteger之间的转换也与k的取值有关，
+ * 只是尽量避免了阶梯本身随k的各位变化的分支与耗时。
+ * <p>
+ * 每个实例带有自己的临时变量，不能被多个线程同时使用。
+ */
+final class Ladder {
+    
+    private static final long M = 0xFFFFFFFFL;
+    private static final int[] N = Fp.toLimbs(n);
+    private static final int[] ONE = Fp.toLimbs(BigInteger.ONE);
+    private static final int[] TWO = Fp.toLimbs(BigInteger.TWO);
+    private static final int[] N_1 = Fp.toLimbs(n.subtract(BigInteger.ONE));
+    private static final int[] N_2 = Fp.toLimbs(n.subtract(BigInteger.TWO));
+    private static final Affine G = new Affine(new ECPoint(gx, gy));
+    
+    private final Fp f = new Fp();
+    private final int[] X0 = new int[8];
+    private final int[] Y0 = new int[8];
+    private final int[] X1 = new int[8];
+    private final int[] Y1 = new int[8];
+    private final int[] t5 = new int[8];
+    private final int[] t6 = new int[8];
+    private final int[] t7 = new int[8];
+    private final int[] k1 = new int[8];
+    private final int[] k2 = new int[8];
+    
+    /**
+     * 计算kG的x坐标
+     *
+     * @param k 倍数
+     * @return kG的x坐标
+     */
+    static BigInteger multiplyGX(BigInteger k) {
+        return new Ladder().multiplyX(G, k);
+    }
+    
+    /**
+     * 计算kP的x坐标
+     *
+     * @param P 非无穷远点，x坐标不为0
+     * @param k 倍数，模n后不为0
+     * @return kP的x坐标
+     */
+    BigInteger multiplyX(Affine P, BigInteger k) {
+        if (k.signum() < 0 || k.compareTo(n) >= 0) {
+            k = k.mod(n);
+        }
+        int[] kl = Fp.toLimbs(k);
+        if (Fp.isZero(kl) || P.inf) {
+            throw new ArithmeticException("point at infinity has no x.");
+        }
+        // 四次比较都做完再合并，不短路
+        boolean one = Fp.equals(kl, ONE) | Fp.equals(kl, N_1);
+        boolean two = Fp.equals(kl, TWO) | Fp.equals(kl, N_2);
+        if (one | two) {
+            // k = ±1, ±2时阶梯的最后一步会遇到x坐标相同的两点，x(kP) = x(-kP)，直接计算P或2P
+            Jacobian J = new Jacobian();
+            J.set(P);
+            if (two) {
+                J.twice();
+            }
+            Affine A = new Affine();
+            J.toAffine(A);
+            return Fp.toBigInteger(A.x);
+        }
+        kl = regularize(kl);
+        int[] X0 = this.X0, Y0 = this.Y0, X1 = this.X1, Y1 = this.Y1;
+        initialDouble(P);
+        // 第256位恒为1，已由初始的R0 = P, R1 = 2P处理
+        int swap = 0;
+        for (int i = 255; i > 0; i--) {
+            int bit = (kl[i >>> 5] >>> (i & 31)) & 1;
+            // 将该位为0的情形交换成为1的情形：(R0, R1) -> (R0 + R1, 2R1)
+            cswap(swap ^ bit ^ 1);
+            swap = bit ^ 1;
+            addC();
+            add();
+        }
+        int bit = kl[0] & 1;
+        cswap(swap ^ bit ^ 1);
+        swap = bit ^ 1;
+        addC();
+        // 此时R1 = ±P，由R1与P的仿射坐标反推出Z，再乘上最后一次加法的X1 - X0即为最终Z的逆(差一个符号，不影响x)
+        int[] z = this.t7;
+        Fp.sub(z, X1, X0);
+        f.mul(z, z, Y1);
+        f.mul(z, z, P.x);
+        f.invFermat(z, z);
+        f.mul(z, z, P.y);
+        f.mul(z, z, X1);
+        add();
+        cswap(swap);
+        // 结果在R0中，x = X0 / Z^2
+        f.sqr(z, z);
+        f.mul(X0, X0, z);
+        return Fp.toBigInteger(X0);
+    }
+    
+    /**
+     * 将k规整为k + n或k + 2n中第256位为1的那个，选择用掩码完成
+     *
+     * @param k 倍数，1 <= k < n
+     * @return 257位的倍数，低256位有效，值与k模n同余
+     */
+    private int[] regularize(int[] k) {
+        int[] k1 = this.k1, k2 = this.k2;
+        long c1 = 0, c2 = 0;
+        for (int i = 0; i < 8; i++) {
+            c1 += (k[i] & M) + (N[i] & M);
+            k1[i] = (int) c1;
+            c1 >>>= 32;
+            c2 += (k1[i] & M) + (N[i] & M);
+            k2[i] = (int) c2;
+            c2 >>>= 32;
+        }
+        // k + n < 2^257，因此进位c1即为k + n的第256位
+        int mask = -(int) c1;
+        for (int i = 0; i < 8; i++) {
+            k1[i] = (k1[i] & mask) | (k2[i] & ~mask);
+        }
+        return k1;
+    }
+    
+    /**
+     * R1 = 2P，R0 = P，两者Z坐标相同
+     */
+    private void initialDouble(Affine P) {
+        Jacobian J = new Jacobian();
+        J.set(P);
+        J.twice();
+        Fp.copy(X1, J.X);
+        Fp.copy(Y1, J.Y);
+        // 将P变换到2P的Z下：X0 = x * Z^2，Y0 = y * Z^3
+        f.sqr(t5, J.Z);
+        f.mul(X0, P.x, t5);
+        f.mul(t5, t5, J.Z);
+        f.mul(Y0, P.y, t5);
+    }
+    
+    /**
+     * co-Z加法：R1 = R0 + R1，R0变换到新的Z下
+     */
+    private void add() {
+        Fp f = this.f;
+        int[] t5 = this.t5;
+        Fp.sub(t5, X1, X0);
+        f.sqr(t5, t5);
+        f.mul(X0, X0, t5);
+        f.mul(X1, X1, t5);
+        Fp.sub(Y1, Y1, Y0);
+        f.sqr(t5, Y1);
+        Fp.sub(t5, t5, X0);
+        Fp.sub(t5, t5, X1);
+        Fp.sub(X1, X1, X0);
+        f.mul(Y0, Y0, X1);
+        Fp.sub(X1, X0, t5);
+        f.mul(Y1, Y1, X1);
+        Fp.sub(Y1, Y1, Y0);
+        Fp.copy(X1, t5);
+    }
+    
+    /**
+     * co-Z共轭加法：R0 = R0 + R1，R1 = R1 - R0，两者保持相同的Z
+     */
+    private void addC() {
+        Fp f = this.f;
+        // 以R1为第一个点、R0为第二个点，即(X1, Y1) <- R1, (X2, Y2) <- R0
+        int[] Xa = X1, Ya = Y1, Xb = X0, Yb = Y0, t5 = this.t5, t6 = this.t6, t7 = this.t7;
+        Fp.sub(t5, Xb, Xa);
+        f.sqr(t5, t5);
+        f.mul(Xa, Xa, t5);
+        f.mul(Xb, Xb, t5);
+        Fp.add(t5, Yb, Ya);
+        Fp.sub(Yb, Yb, Ya);
+        Fp.sub(t6, Xb, Xa);
+        f.mul(Ya, Ya, t6);
+        Fp.add(t6, Xa, Xb);
+        f.sqr(Xb, Yb);
+        Fp.sub(Xb, Xb, t6);
+        Fp.sub(t7, Xa, Xb);
+        f.mul(Yb, Yb, t7);
+        Fp.sub(Yb, Yb, Ya);
+        f.sqr(t7, t5);
+        Fp.sub(t7, t7, t6);
+        Fp.sub(t6, t7, Xa);
+        f.mul(t6, t6, t5);
+        Fp.sub(Ya, t6, Ya);
+        Fp.copy(Xa, t7);
+    }
+    
+    /**
+     * swap为1时交换R0与R1，为0时不变
+     */
+    private void cswap(int swap) {
+        int mask = -swap;
+        cswap(X0, X1, mask);
+        cswap(Y0, Y1, mask);
+    }
+    
+    private static void cswap(int[] a, int[] b, int mask) {
+        for (int i = 0; i < 8; i++) {
+            int t = (a[i] ^ b[i]) & mask;
+            a[i] ^= t;
+            b[i] ^= t;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package sm2.support;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * 有容量上限的线程安全LRU缓存
+ * <p>
+ * 超出容量时淘汰最久未被访问的项，并记录命中与未命中次数。
+ * 未命中时的值在锁外计算，多个线程同时未命中同一个键时可能重复计算，以先放入的值为准。
+ *
+ * @param <K> 键的类型
+ * @param <V> 值的类型
+ */
+public final class LruCache<K, V> {
+    
+    private final int capacity;
+    private final LinkedHashMap<K, V> map;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    
+    /**
+     * 构造缓存
+     *
+     * @param capacity 最多缓存的项数
+     */
+    public LruCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive.");
+        }
+        this.capacity = capacity;
+        this.map = new LinkedHashMap<K, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > LruCache.this.capacity;
+            }
+        };
+    }
+    
+    /**
+     * 查找键对应的值，不存在时计算并放入缓存
+     *
+     * @param key      键
+     * @param function 未命中时由键计算值
+     * @return 值
+     */
+    public V get(K key, Function<? super K, ? extends V> function) {
+        synchronized (map) {
+            V value = map.get(key);
+            if (value != null) {
+                hits.incrementAndGet();
+                return value;
+            }
+        }
+        misses.incrementAndGet();
+        V value = function.apply(key);
+        synchronized (map) {
+            V old = map.putIfAbsent(key, value);
+            return old != null ? old : value;
+        }
+    }
+    
+    /**
+     * 查找键对应的值，不计算也不放入
+     *
+     * @param key 键
+     * @return 值，不存在时为null
+     */
+    public V getIfPresent(K key) {
+        synchronized (map) {
+            V value = map.get(key);
+            (value != null ? hits : misses).incrementAndGet();
+            return value;
+        }
+    }
+    
+    public void put(K key, V value) {
+        synchronized (map) {
+            map.put(key, value);
+        }
+    }
+    
+    public void clear() {
+        synchronized (map) {
+            map.clear();
+        }
+    }
+    
+    public int size() {
+        synchronized (map) {
+            return map.size();
+        }
+    }
+    
+    public int capacity() {
+        return capacity;
+    }
+    
+    public long hits() {
+        return hits.get();
+    }
+    
+    public long misses() {
+        return misses.get();
+    }
+    
+    @Override
+    public String toString() {
+        return "LruCache(size=" + size() + ", capacity=" + capacity + ", hits=" + hits() + ", misses=" + misses() + ")";
+    }
+}
+
+class LruCacheTest {
+    public static void main(String[] args) {
+        LruCache<Integer, String> cache = new LruCache<>(2);
+        cache.get(1, String::valueOf);
+        cache.get(2, String::valueOf);
+        cache.get(1, String::valueOf);
+        cache.get(3, String::valueOf);
+        System.out.println("evicted 2: " + (cache.getIfPresent(2) == null));
+        System.out.println("kept 1: " + "1".equals(cache.getIfPresent(1)));
+        System.out.println(cache);
+    }
+}
@@ -0,0 +1,293 @@
+package sm2.support;
+
+import java.math.BigInteger;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import static sm2.Curve.b;
+
+/**
+ * 点的SEC1字节编码(GB/T 32918.1第4.2.9节)
+ * <p>
+ * 压缩形式为02或03 || x，共33字节；未压缩形式为04 || x || y，混合形式为06或07 || x || y，均为65字节；
+ * 无穷远点编码为单字节00。解码时未压缩与混合形式检查点在曲线上，压缩形式由平方根恢复y，
+ * 因p ≡ 3 (mod 4)，平方根为a^((p+1)/4)，由BigInteger.modPow计算。
+ * 解码失败时抛出IllegalArgumentException。
+ */
+public final class PointCodec {
+    
+    /**
+     * 编码形式
+     */
+    public enum Format {
+        COMPRESSED(33),
+        UNCOMPRESSED(65),
+        HYBRID(65);
+        
+        private final int length;
+        
+        Format(int length) {
+            this.length = length;
+        }
+        
+        /**
+         * @return 非无穷远点编码的字节数
+         */
+        public int length() {
+            return this.length;
+        }
+    }
+    
+    private static final int[] B = Fp.fromBigInteger(b);
+    
+    /**
+     * 每个并行任务解码的点数
+     */
+    private static final int CHUNK = 256;
+    
+    private PointCodec() {
+    }
+    
+    /**
+     * 编码
+     *
+     * @param P      点
+     * @param format 编码形式
+     * @return 编码
+     */
+    public static byte[] encode(ECPoint P, Format format) {
+        byte[] out = new byte[ECPoint.isO(P) ? 1 : format.length];
+        encode(P, format, out, 0);
+        return out;
+    }
+    
+    /**
+     * 编码
+     *
+     * @param P      点
+     * @param format 编码形式
+     * @param out    输出，无穷远点写入1字节，否则写入format.length()字节
+     * @param off    输出的起始位置
+     * @return 写入的字节数
+     */
+    public static int encode(ECPoint P, Format format, byte[] out, int off) {
+        if (ECPoint.isO(P)) {
+            out[off] = 0x00;
+            return 1;
+        }
+        int[] x = Fp.fromBigInteger(P.getX()), y = Fp.fromBigInteger(P.getY());
+        int odd = y[0] & 1;
+        Fp.encode(x, out, off + 1);
+        switch (format) {
+            case COMPRESSED:
+                out[off] = (byte) (0x02 | odd);
+                return 33;
+            case HYBRID:
+                out[off] = (byte) (0x06 | odd);
+                break;
+            default:
+                out[off] = 0x04;
+        }
+        Fp.encode(y, out, off + 33);
+        return 65;
+    }
+    
+    /**
+     * 解码
+     *
+     * @param in 编码
+     * @return 点
+     * @throws IllegalArgumentException 编码不合法或点不在曲线上
+     */
+    public static ECPoint decode(byte[] in) {
+        return decode(in, 0, in.length, new Fp());
+    }
+    
+    /**
+     * 解码
+     *
+     * @param in  输入
+     * @param off 编码的起始位置
+     * @param len 编码的字节数
+     * @return 点
+     * @throws IllegalArgumentException 编码不合法或点不在曲线上
+     */
+    public static ECPoint decode(byte[] in, int off, int len) {
+        return decode(in, off, len, new Fp());
+    }
+    
+    private static ECPoint decode(byte[] in, int off, int len, Fp f) {
+        if (len < 1 || off < 0 || off > in.length - len) {
+            throw new IllegalArgumentException("invalid point encoding.");
+        }
+        if (len == 1 && in[off] == 0x00) {
+            return new ECPoint();
+        }
+        int type = in[off];
+        int[] x = new int[8], y = new int[8];
+        if (len == 33 && (type == 0x02 || type == 0x03)) {
+            if (!Fp.decode(x, in, off + 1) || !decompress(f, x, type & 1, y)) {
+                throw new IllegalArgumentException("invalid point encoding.");
+            }
+        } else if (len == 65 && (type == 0x04 || type == 0x06 || type == 0x07)) {
+            if (!Fp.decode(x, in, off + 1) || !Fp.decode(y, in, off + 33)
+                    || (type != 0x04 && (y[0] & 1) != (type & 1)) || !onCurve(f, x, y)) {
+                throw new IllegalArgumentException("invalid point encoding.");
+            }
+        } else {
+            throw new IllegalArgumentException("invalid point encoding.");
+        }
+        return new ECPoint(Fp.toBigInteger(x), Fp.toBigInteger(y));
+    }
+    
+    /**
+     * 并行解码一组点
+     *
+     * @param in 各点的编码
+     * @return 点，顺序与输入相同
+     * @throws IllegalArgumentException 任一编码不合法
+     */
+    public static ECPoint[] decodeAll(byte[][] in) {
+        ECPoint[] out = new ECPoint[in.length];
+        int chunks = (in.length + CHUNK - 1) / CHUNK;
+        IntStream.range(0, chunks).parallel().forEach(c -> {
+            Fp f = new Fp();
+            for (int i = c * CHUNK; i < Math.min(in.length, (c + 1) * CHUNK); i++) {
+                out[i] = decode(in[i], 0, in[i].length, f);
+            }
+        });
+        return out;
+    }
+    
+    /**
+     * 并行解码连续存放的一组定长编码，例如批量到达的33字节压缩公钥
+     *
+     * @param in     输入
+     * @param off    第一个编码的起始位置
+     * @param count  点的个数
+     * @param stride 每个编码的字节数
+     * @return 点，顺序与输入相同
+     * @throws IllegalArgumentException 任一编码不合法
+     */
+    public static ECPoint[] decodeAll(byte[] in, int off, int count, int stride) {
+        ECPoint[] out = new ECPoint[count];
+        int chunks = (count + CHUNK - 1) / CHUNK;
+        IntStream.range(0, chunks).parallel().forEach(c -> {
+            Fp f = new Fp();
+            for (int i = c * CHUNK; i < Math.min(count, (c + 1) * CHUNK); i++) {
+                out[i] = decode(in, off + i * stride, stride, f);
+            }
+        });
+        return out;
+    }
+    
+    /**
+     * 由x与y的最低位恢复y，y^2 = x^3 - 3x + b
+     *
+     * @param f   域运算
+     * @param x   x坐标
+     * @param odd y的最低位
+     * @param y   结果
+     * @return x是否为曲线上点的横坐标
+     */
+    static boolean decompress(Fp f, int[] x, int odd, int[] y) {
+        int[] alpha = rhs(f, x);
+        if (!f.sqrt(y, alpha)) {
+            return false;
+        }
+        if ((y[0] & 1) != odd) {
+            Fp.neg(y, y);
+        }
+        // y = 0时无法取到奇数的y
+        return (y[0] & 1) == odd;
+    }
+    
+    /**
+     * 检查y^2 = x^3 - 3x + b
+     */
+    static boolean onCurve(Fp f, int[] x, int[] y) {
+        int[] t = new int[8];
+        f.sqr(t, y);
+        return Fp.equals(t, rhs(f, x));
+    }
+    
+    /**
+     * x^3 - 3x + b = (x^2 - 3) * x + b
+     */
+    private static int[] rhs(Fp f, int[] x) {
+        int[] r = new int[8], three = {3, 0, 0, 0, 0, 0, 0, 0};
+        f.sqr(r, x);
+        Fp.sub(r, r, three);
+        f.mul(r, r, x);
+        Fp.add(r, r, B);
+        return r;
+    }
+}
+
+class PointCodecTest {
+    public static void main(String[] args) {
+        java.util.Random random = new java.util.Random(1);
+        int bad = 0;
+        for (int i = 0; i < 200; i++) {
+            ECPoint P = ECPoint.multiplyG(new BigInteger(256, random));
+            for (PointCodec.Format format : PointCodec.Format.values()) {
+                byte[] enc = PointCodec.encode(P, format);
+                bad += enc.length == format.length() && PointCodec.decode(enc).equals(P) ? 0 : 1;
+            }
+            byte[] enc = PointCodec.encode(P, PointCodec.Format.COMPRESSED);
+            bad += ECPoint.decompress(P.getX(), enc[0] & 1).equals(P.getY()) ? 0 : 1;
+            // 篡改y或其最低位
+            enc = PointCodec.encode(P, PointCodec.Format.HYBRID);
+            enc[0] ^= 1;
+            bad += rejected(enc) ? 0 : 1;
+            enc = PointCodec.encode(P, PointCodec.Format.UNCOMPRESSED);
+            enc[64] ^= 1;
+            bad += rejected(enc) ? 0 : 1;
+        }
+        bad += PointCodec.decode(new byte[]{0}).equals(new ECPoint()) ? 0 : 1;
+        // 空输入与越界的范围
+        bad += rejected(new byte[0]) ? 0 : 1;
+        bad += rejected(new byte[33], 1, 33) ? 0 : 1;
+        bad += rejected(new byte[33], -1, 1) ? 0 : 1;
+        bad += rejected(new byte[33], 33, 0) ? 0 : 1;
+        // 约一半的x不是曲线上点的横坐标
+        int invalid = 0;
+        for (int i = 0; i < 200; i++) {
+            byte[] enc = new byte[33];
+            random.nextBytes(enc);
+            enc[0] = 0x02;
+            invalid += rejected(enc) ? 1 : 0;
+        }
+        System.out.println("codec bad=" + bad + ", random x rejected: " + invalid + "/200");
+        
+        int count = 20000;
+        byte[] packed = new byte[count * 33];
+        for (int i = 0; i < count; i++) {
+            PointCodec.encode(ECPoint.multiplyG(BigInteger.valueOf(i + 1)), PointCodec.Format.COMPRESSED, packed, i * 33);
+        }
+        for (int r = 0; r < 3; r++) {
+            long t0 = System.nanoTime();
+            ECPoint[] points = PointCodec.decodeAll(packed, 0, count, 33);
+            long t1 = System.nanoTime();
+            for (int i = 0; i < 1000; i++) {
+                ECPoint.decompress(points[i].getX(), points[i].getY().testBit(0) ? 1 : 0);
+            }
+            long t2 = System.nanoTime();
+            System.out.printf("decodeAll: %.0f points/s, decompress: %.0f points/s%n",
+                    count / ((t1 - t0) / 1e9), 1000 / ((t2 - t1) / 1e9));
+        }
+    }
+    
+    private static boolean rejected(byte[] enc) {
+        return rejected(enc, 0, enc.length);
+    }
+    
+    private static boolean rejected(byte[] in, int off, int len) {
+        try {
+            PointCodec.decode(in, off, len);
+            return false;
+        } catch (IllegalArgumentException e) {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package sm3;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 'HmacSM3' is HMAC (RFC 2104) over SM3. The key blocks k^ipad and k^opad are
+ * compressed once in init, every mac then starts from copies of those states
+ */
+public class HmacSM3 {
+    
+    private static final int BLOCK_SIZE = 64;
+    private static final int MAC_SIZE = 32;
+    
+    private final SM3 innerKeyed = new SM3();
+    private final SM3 outerKeyed = new SM3();
+    private final SM3 inner = new SM3();
+    private final SM3 outer = new SM3();
+    private final byte[] innerHash = new byte[MAC_SIZE];
+    private boolean initialized;
+    
+    /**
+     * 'HmacSM3' creates a mac which has to be initialized with a key
+     */
+    public HmacSM3() {
+    }
+    
+    /**
+     * 'HmacSM3' creates a mac for a key
+     *
+     * @param key is the key
+     */
+    public HmacSM3(byte[] key) {
+        init(key);
+    }
+    
+    /**
+     * 'mac' is a one-shot HMAC-SM3
+     *
+     * @param key is the key
+     * @param msg is the msg
+     * @return the value of mac
+     */
+    public static byte[] mac(byte[] key, byte[] msg) {
+        HmacSM3 hmac = new HmacSM3(key);
+        hmac.update(msg);
+        return hmac.doFinal();
+    }
+    
+    /**
+     * 'init' sets the key and precomputes the keyed states
+     *
+     * @param key is the key, keys longer than one block are hashed first
+     */
+    public void init(byte[] key) {
+        byte[] pad = new byte[BLOCK_SIZE];
+        if (key.length > BLOCK_SIZE) {
+            SM3 sm3 = new SM3();
+            sm3.update(key);
+            sm3.doFinal(pad, 0);
+        } else {
+            System.arraycopy(key, 0, pad, 0, key.length);
+        }
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            pad[i] ^= 0x36;
+        }
+        innerKeyed.reset();
+        innerKeyed.update(pad);
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            pad[i] ^= 0x36 ^ 0x5c;
+        }
+        outerKeyed.reset();
+        outerKeyed.update(pad);
+        Arrays.fill(pad, (byte) 0);
+        inner.copyState(innerKeyed);
+        initialized = true;
+    }
+    
+    /**
+     * 'copy' snapshots the mac, the keyed states and the absorbed msg are
+     * copied. This allows a keyed prefix to be absorbed once and continued
+     * with different suffixes
+     *
+     * @return an independent mac in the same state
+     */
+    public HmacSM3 copy() {
+        HmacSM3 hmac = new HmacSM3();
+        hmac.innerKeyed.copyState(innerKeyed);
+        hmac.outerKeyed.copyState(outerKeyed);
+        hmac.inner.copyState(inner);
+        hmac.initialized = initialized;
+        return hmac;
+    }
+    
+    /**
+     * 'getMacLength' is the length of the mac in bytes
+     *
+     * @return 32
+     */
+    public int getMacLength() {
+        return MAC_SIZE;
+    }
+    
+    public void update(byte in) {
+        checkInit();
+        inner.update(in);
+    }
+    
+    public void update(byte[] in) {
+        checkInit();
+        inner.update(in);
+    }
+    
+    public void update(byte[] in, int off, int len) {
+        checkInit();
+        inner.update(in, off, len);
+    }
+    
+    public void update(ByteBuffer in) {
+        checkInit();
+        inner.update(in);
+    }
+    
+    /**
+     * 'doFinal' finishes the mac and resets it to the keyed state
+     *
+     * @return the value of mac
+     */
+    public byte[] doFinal() {
+        byte[] result = new byte[MAC_SIZE];
+        doFinal(result, 0);
+        return result;
+    }
+    
+    /**
+     * 'doFinal' finishes the mac into out and resets it to the keyed state
+     *
+     * @param out is the destination, 32 bytes are written
+     * @param off is the start offset in out
+     */
+    public void doFinal(byte[] out, int off) {
+        checkInit();
+        inner.doFinal(innerHash, 0);
+        outer.copyState(outerKeyed);
+        outer.update(innerHash);
+        outer.doFinal(out, off);
+        inner.copyState(innerKeyed);
+    }
+    
+    /**
+     * 'reset' drops the absorbed msg, the key is kept
+     */
+    public void reset() {
+        if (initialized) {
+            inner.copyState(innerKeyed);
+        }
+    }
+    
+    private void checkInit() {
+        if (!initialized) {
+            throw new IllegalStateException("HmacSM3 not initialized");
+        }
+    }
+}
+
+class HmacSM3Test {
+    public static void main(String[] args) throws Exception {
+        byte[] msg = "The quick brown fox jumps over the lazy dog".getBytes(StandardCharsets.US_ASCII);
+        for (int keyLen : new int[]{0, 16, 64, 65, 200}) {
+            byte[] key = new byte[keyLen];
+            Arrays.fill(key, (byte) keyLen);
+            byte[] k = key.length > 64 ? SM3.hash(key) : key;
+            byte[] ipad = Arrays.copyOf(k, 64);
+            byte[] opad = Arrays.copyOf(k, 64);
+            for (int i = 0; i < 64; i++) {
+                ipad[i] ^= 0x36;
+                opad[i] ^= 0x5c;
+            }
+            byte[] inner = new byte[64 + msg.length];
+            System.arraycopy(ipad, 0, inner, 0, 64);
+            System.arraycopy(msg, 0, inner, 64, msg.length);
+            byte[] outer = Arrays.copyOf(opad, 96);
+            System.arraycopy(SM3.hash(inner), 0, outer, 64, 32);
+            byte[] expected = SM3.hash(outer);
+            byte[] actual = HmacSM3.mac(key, msg);
+            System.out.println(keyLen + ": " + SM3.hexdigit(actual) + (Arrays.equals(expected, actual) ? "" : " (mismatch)"));
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package sm3;
+
+import java.nio.ByteBuffer;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.spec.AlgorithmParameterSpec;
+import javax.crypto.MacSpi;
+
+/**
+ * 'HmacSM3Spi' exposes HmacSM3 through javax.crypto.Mac
+ */
+public class HmacSM3Spi extends MacSpi implements Cloneable {
+    
+    private HmacSM3 hmac = new HmacSM3();
+    
+    @Override
+    protected int engineGetMacLength() {
+        return hmac.getMacLength();
+    }
+    
+    @Override
+    protected void engineInit(Key key, AlgorithmParameterSpec params)
+            throws InvalidKeyException, InvalidAlgorithmParameterException {
+        if (params != null) {
+            throw new InvalidAlgorithmParameterException("HmacSM3 takes no parameters");
+        }
+        byte[] encoded = key == null ? null : key.getEncoded();
+        if (encoded == null) {
+            throw new InvalidKeyException("key has no encoding");
+        }
+        hmac.init(encoded);
+    }
+    
+    @Override
+    protected void engineUpdate(byte input) {
+        hmac.update(input);
+    }
+    
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int len) {
+        hmac.update(input, offset, len);
+    }
+    
+    @Override
+    protected void engineUpdate(ByteBuffer input) {
+        hmac.update(input);
+    }
+    
+    @Override
+    protected byte[] engineDoFinal() {
+        return hmac.doFinal();
+    }
+    
+    @Override
+    protected void engineReset() {
+        hmac.reset();
+    }
+    
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+        HmacSM3Spi spi = (HmacSM3Spi) super.clone();
+        spi.hmac = hmac.copy();
+        return spi;
+    }
+}
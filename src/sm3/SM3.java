@@ -1,8 +1,14 @@
 package sm3;
 
 import java.io.IOException;
-import java.io.ByteArrayOutputStream;
-import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 import java.util.Scanner;
 
@@ -10,137 +16,347 @@ public class SM3 {
     
     private static char[] hexEnum = {'0', '1', '2', '3', '4', '5', '6', '7', '8',
             '9', 'a', 'b', 'c', 'd', 'e', 'f'};
-    private static final String ivHexStr = "7380166f 4914b2b9 172442d7 da8a0600 a96f30bc 163138aa e38dee4d b0fb0e4e";
-    private static final BigInteger IV = new BigInteger(ivHexStr.replaceAll(" ", ""), 16);
-    private static final Integer T1 = 0x79cc4519;
-    private static final Integer T2 = 0x7a879d8a;
-    private static final byte[] FirstPadding = {(byte) 0x80};
-    private static final byte[] ZeroPadding = {(byte) 0x00};
+    private static final int[] IV = {0x7380166f, 0x4914b2b9, 0x172442d7, 0xda8a0600,
+            0xa96f30bc, 0x163138aa, 0xe38dee4d, 0xb0fb0e4e};
+    private static final int T1 = 0x79cc4519;
+    private static final int T2 = 0x7a879d8a;
+    private static final int BLOCK_SIZE = 64;
+    private static final long MAX_LENGTH = 0x2000000000000000L;
+    private static final int MAP_WINDOW = 64 << 20;
     
-    private static int T(int j) {
-        if (j <= 15) {
-            return T1;
-        } else {
-            return T2;
-        }
-    }
+    /**
+     * 'TJ' holds T(j) <<< j, so that the rounds need no rotation of the constant
+     */
+    private static final int[] TJ = new int[64];
     
-    private static Integer FF(Integer x, Integer y, Integer z, int j) {
-        if (j <= 15) {
-            return x ^ y ^ z;
-        } else {
-            return (x & y) | (x & z) | (y & z);
+    static {
+        for (int j = 0; j < 64; j++) {
+            TJ[j] = Integer.rotateLeft(j <= 15 ? T1 : T2, j);
         }
     }
     
-    private static Integer GG(Integer x, Integer y, Integer z, int j) {
-        if (j <= 15) {
-            return x ^ y ^ z;
-        } else {
-            return (x & y) | (~x & z);
-        }
+    private final int[] v = new int[8];
+    private final int[] w = new int[68];
+    private final byte[] block = new byte[BLOCK_SIZE];
+    private int blockOff;
+    private long byteCount;
+    
+    /**
+     * 'SM3' creates an incremental digest in its initial state
+     */
+    public SM3() {
+        reset();
     }
     
-    private static Integer P0(Integer x) {
+    private static int P0(int x) {
         return x ^ Integer.rotateLeft(x, 9) ^ Integer.rotateLeft(x, 17);
     }
     
-    private static Integer P1(Integer x) {
+    private static int P1(int x) {
         return x ^ Integer.rotateLeft(x, 15) ^ Integer.rotateLeft(x, 23);
     }
     
     /**
-     * 'padding' is used to pad msg
+     * 'hash' is the main function
      *
      * @param source is the msg
-     * @return a padded msg
-     * @throws IOException due to length judge
+     * @return the value of hash
+     * @throws IOException kept for compatibility with earlier callers
      */
-    private static byte[] padding(byte[] source) throws IOException {
-        if (source.length >= 0x2000000000000000L) {
-            throw new RuntimeException("src data invalid.");
+    public static byte[] hash(byte[] source) throws IOException {
+        SM3 sm3 = new SM3();
+        sm3.update(source);
+        return sm3.doFinal();
+    }
+    
+    /**
+     * 'hashAll' hashes a batch of independent messages, interleaving them
+     * across the lanes of SM3Lanes
+     *
+     * @param msgs are the messages
+     * @return the values of hash, in the order of msgs
+     */
+    public static byte[][] hashAll(byte[][] msgs) {
+        return new SM3Lanes().hashAll(msgs);
+    }
+    
+    /**
+     * 'hash' digests a whole file by walking it through memory-mapped windows
+     *
+     * @param path is the file
+     * @return the value of hash
+     * @throws IOException due to opening or mapping the file
+     */
+    public static byte[] hash(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return hash(channel);
         }
-        long sourceLen = source.length << 3;
-        long zeroLen = 448 - ((sourceLen + 1) & 511);
-        if (zeroLen < 0) {
-            zeroLen = zeroLen + 512;
+    }
+    
+    /**
+     * 'hash' digests the whole content of a file channel, its position is not changed
+     *
+     * @param channel is an open channel
+     * @return the value of hash
+     * @throws IOException due to mapping the channel
+     */
+    public static byte[] hash(FileChannel channel) throws IOException {
+        SM3 sm3 = new SM3();
+        sm3.update(channel);
+        return sm3.doFinal();
+    }
+    
+    /**
+     * 'reset' restores the digest to its initial state
+     */
+    public void reset() {
+        System.arraycopy(IV, 0, v, 0, 8);
+        blockOff = 0;
+        byteCount = 0;
+    }
+    
+    /**
+     * 'copy' snapshots the digest, only the chaining value and the partial
+     * block are copied. This allows a shared prefix to be absorbed once and
+     * continued with different suffixes
+     *
+     * @return an independent digest in the same state
+     */
+    public SM3 copy() {
+        SM3 sm3 = new SM3();
+        sm3.copyState(this);
+        return sm3;
+    }
+    
+    /**
+     * 'copyState' makes this digest continue from the state of another one,
+     * like copy but without allocating a new digest
+     *
+     * @param from is the digest to copy
+     */
+    public void copyState(SM3 from) {
+        System.arraycopy(from.v, 0, v, 0, 8);
+        System.arraycopy(from.block, 0, block, 0, from.blockOff);
+        blockOff = from.blockOff;
+        byteCount = from.byteCount;
+    }
+    
+    /**
+     * 'update' absorbs a single byte
+     *
+     * @param in is the byte
+     */
+    public void update(byte in) {
+        count(1);
+        block[blockOff++] = in;
+        if (blockOff == BLOCK_SIZE) {
+            CF(block, 0);
+            blockOff = 0;
         }
-        ByteArrayOutputStream bytearray = new ByteArrayOutputStream();
-        bytearray.write(source);
-        bytearray.write(FirstPadding);
-        long i = zeroLen - 7;
-        while (i > 0) {
-            bytearray.write(ZeroPadding);
-            i -= 8;
+    }
+    
+    /**
+     * 'update' absorbs a whole byte-array
+     *
+     * @param in is the msg
+     */
+    public void update(byte[] in) {
+        update(in, 0, in.length);
+    }
+    
+    /**
+     * 'update' absorbs part of a byte-array, at most one block is buffered
+     *
+     * @param in  is the msg
+     * @param off is the start offset in msg
+     * @param len is the number of bytes to absorb
+     */
+    public void update(byte[] in, int off, int len) {
+        if (off < 0 || len < 0 || off > in.length - len) {
+            throw new IndexOutOfBoundsException();
+        }
+        count(len);
+        if (blockOff > 0) {
+            int n = Math.min(BLOCK_SIZE - blockOff, len);
+            System.arraycopy(in, off, block, blockOff, n);
+            blockOff += n;
+            off += n;
+            len -= n;
+            if (blockOff < BLOCK_SIZE) {
+                return;
+            }
+            CF(block, 0);
+            blockOff = 0;
+        }
+        while (len >= BLOCK_SIZE) {
+            CF(in, off);
+            off += BLOCK_SIZE;
+            len -= BLOCK_SIZE;
         }
-        bytearray.write(LongToBytes(sourceLen));
-        return bytearray.toByteArray();
+        System.arraycopy(in, off, block, 0, len);
+        blockOff = len;
     }
     
-    private static byte[] LongToBytes(long l) {
-        byte[] bytes = new byte[8];
-        for (int i = 0; i < 8; i++) {
-            bytes[i] = (byte) (l >> ((7 - i) << 3));
+    /**
+     * 'update' absorbs the remaining bytes of a buffer
+     *
+     * @param in is the msg, its position is moved to its limit
+     */
+    public void update(ByteBuffer in) {
+        if (in.hasArray()) {
+            int len = in.remaining();
+            update(in.array(), in.arrayOffset() + in.position(), len);
+            in.position(in.position() + len);
+            return;
         }
-        return bytes;
+        count(in.remaining());
+        if (blockOff > 0) {
+            int n = Math.min(BLOCK_SIZE - blockOff, in.remaining());
+            in.get(block, blockOff, n);
+            blockOff += n;
+            if (blockOff < BLOCK_SIZE) {
+                return;
+            }
+            CF(block, 0);
+            blockOff = 0;
+        }
+        int pos = in.position();
+        int limit = in.limit();
+        while (limit - pos >= BLOCK_SIZE) {
+            CF(in, pos);
+            pos += BLOCK_SIZE;
+        }
+        in.position(pos);
+        blockOff = in.remaining();
+        in.get(block, 0, blockOff);
     }
     
     /**
-     * 'hash' is the main function
+     * 'update' absorbs the whole content of a file channel, the blocks are
+     * compressed straight out of read-only mappings of at most MAP_WINDOW bytes
+     *
+     * @param channel is an open channel, its position is not changed
+     * @throws IOException due to mapping the channel
+     */
+    public void update(FileChannel channel) throws IOException {
+        update(channel, 0, channel.size());
+    }
+    
+    /**
+     * 'update' absorbs a range of a file channel through read-only mappings
+     * of at most MAP_WINDOW bytes
+     *
+     * @param channel  is an open channel, its position is not changed
+     * @param position is where the range starts
+     * @param count    is the length of the range
+     * @throws IOException due to mapping the channel
+     */
+    public void update(FileChannel channel, long position, long count) throws IOException {
+        long end = position + count;
+        for (long pos = position; pos < end; pos += MAP_WINDOW) {
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(MAP_WINDOW, end - pos));
+            update(window);
+        }
+    }
+    
+    /**
+     * 'doFinal' pads the buffered block and resets the digest
      *
-     * @param source is the msg
      * @return the value of hash
-     * @throws IOException due to padding and CF
      */
-    public static byte[] hash(byte[] source) throws IOException {
-        byte[] m = padding(source);
-        int blockNum = m.length >> 6;
-        byte[] b;
-        byte[] vi = IV.toByteArray();
-        for (int i = 0; i < blockNum; i++) {
-            b = Arrays.copyOfRange(m, i << 6, (i + 1) << 6);
-            vi = CF(vi, b);
+    public byte[] doFinal() {
+        byte[] result = new byte[32];
+        doFinal(result, 0);
+        return result;
+    }
+    
+    /**
+     * 'doFinal' pads the buffered block, writes the hash into out and resets the digest
+     *
+     * @param out is the destination, 32 bytes are written
+     * @param off is the start offset in out
+     */
+    public void doFinal(byte[] out, int off) {
+        long bitLen = byteCount << 3;
+        block[blockOff++] = (byte) 0x80;
+        if (blockOff > BLOCK_SIZE - 8) {
+            while (blockOff < BLOCK_SIZE) {
+                block[blockOff++] = 0;
+            }
+            CF(block, 0);
+            blockOff = 0;
+        }
+        while (blockOff < BLOCK_SIZE - 8) {
+            block[blockOff++] = 0;
+        }
+        putInt(block, BLOCK_SIZE - 8, (int) (bitLen >>> 32));
+        putInt(block, BLOCK_SIZE - 4, (int) bitLen);
+        CF(block, 0);
+        for (int i = 0; i < 8; i++) {
+            putInt(out, off + (i << 2), v[i]);
         }
-        return vi;
+        reset();
     }
     
     /**
-     * 'CF' is a compression function
+     * 'count' keeps track of the msg length
      *
-     * @param vi is a copy of VI
-     * @param bi is the msg
-     * @return a byte-array
-     * @throws IOException due to toInteger()
-     */
-    private static byte[] CF(byte[] vi, byte[] bi) throws IOException {
-        int a, b, c, d, e, f, g, h;
-        a = toInteger(vi, 0);
-        b = toInteger(vi, 1);
-        c = toInteger(vi, 2);
-        d = toInteger(vi, 3);
-        e = toInteger(vi, 4);
-        f = toInteger(vi, 5);
-        g = toInteger(vi, 6);
-        h = toInteger(vi, 7);
-        
-        int[] w = new int[68];
-        int[] wp = new int[64];
-        for (int i = 0; i < 16; i++) {
-            w[i] = toInteger(bi, i);
+     * @param len is the number of new bytes
+     */
+    private void count(long len) {
+        if (len > MAX_LENGTH - byteCount) {
+            throw new RuntimeException("src data invalid.");
+        }
+        byteCount += len;
+    }
+    
+    /**
+     * 'CF' compresses one block into the chaining value
+     *
+     * @param bi  is the msg
+     * @param off is the start offset of the block in msg
+     */
+    private void CF(byte[] bi, int off) {
+        int[] w = this.w;
+        for (int i = 0; i < 16; i++, off += 4) {
+            w[i] = (bi[off] << 24) | ((bi[off + 1] & 0xff) << 16)
+                    | ((bi[off + 2] & 0xff) << 8) | (bi[off + 3] & 0xff);
+        }
+        compress();
+    }
+    
+    /**
+     * 'CF' compresses one block read directly out of a buffer
+     *
+     * @param bi  is the msg, its position is not changed
+     * @param off is the absolute index of the block in msg
+     */
+    private void CF(ByteBuffer bi, int off) {
+        int[] w = this.w;
+        boolean bigEndian = bi.order() == ByteOrder.BIG_ENDIAN;
+        for (int i = 0; i < 16; i++, off += 4) {
+            w[i] = bigEndian ? bi.getInt(off) : Integer.reverseBytes(bi.getInt(off));
         }
+        compress();
+    }
+    
+    /**
+     * 'compress' expands the words loaded into w[0..15] and runs the 64 rounds
+     */
+    private void compress() {
+        int[] w = this.w;
         for (int j = 16; j < 68; j++) {
             w[j] = P1(w[j - 16] ^ w[j - 9] ^ Integer.rotateLeft(w[j - 3], 15))
                     ^ Integer.rotateLeft(w[j - 13], 7) ^ w[j - 6];
         }
-        for (int j = 0; j < 64; j++) {
-            wp[j] = w[j] ^ w[j + 4];
-        }
-        int ss1, ss2, tt1, tt2;
-        for (int j = 0; j < 64; j++) {
-            ss1 = Integer.rotateLeft(Integer.rotateLeft(a, 12) + e + Integer.rotateLeft(T(j), j), 7);
-            ss2 = ss1 ^ Integer.rotateLeft(a, 12);
-            tt1 = FF(a, b, c, j) + d + ss2 + wp[j];
-            tt2 = GG(e, f, g, j) + h + ss1 + w[j];
+        int a = v[0], b = v[1], c = v[2], d = v[3], e = v[4], f = v[5], g = v[6], h = v[7];
+        int a12, ss1, ss2, tt1, tt2;
+        for (int j = 0; j < 16; j++) {
+            a12 = Integer.rotateLeft(a, 12);
+            ss1 = Integer.rotateLeft(a12 + e + TJ[j], 7);
+            ss2 = ss1 ^ a12;
+            tt1 = (a ^ b ^ c) + d + ss2 + (w[j] ^ w[j + 4]);
+            tt2 = (e ^ f ^ g) + h + ss1 + w[j];
             d = c;
             c = Integer.rotateLeft(b, 9);
             b = a;
@@ -150,49 +366,43 @@ public class SM3 {
             f = e;
             e = P0(tt2);
         }
-        byte[] v = toByteArray(a, b, c, d, e, f, g, h);
-        for (int i = 0; i < v.length; i++) {
-            v[i] = (byte) (v[i] ^ vi[i]);
-        }
-        return v;
-    }
-    
-    /**
-     * 'toInteger' extracts an integer from a byte-array
-     *
-     * @param source is a byte-array
-     * @param index  is the index
-     * @return an integer
-     */
-    private static int toInteger(byte[] source, int index) {
-        StringBuilder valueStr = new StringBuilder();
-        for (int i = 0; i < 4; i++) {
-            valueStr.append(hexEnum[(byte) ((source[index * 4 + i] & 0xf0) >> 4)]);
-            valueStr.append(hexEnum[(byte) (source[index * 4 + i] & 0x0f)]);
+        for (int j = 16; j < 64; j++) {
+            a12 = Integer.rotateLeft(a, 12);
+            ss1 = Integer.rotateLeft(a12 + e + TJ[j], 7);
+            ss2 = ss1 ^ a12;
+            tt1 = ((a & b) | (a & c) | (b & c)) + d + ss2 + (w[j] ^ w[j + 4]);
+            tt2 = ((e & f) | (~e & g)) + h + ss1 + w[j];
+            d = c;
+            c = Integer.rotateLeft(b, 9);
+            b = a;
+            a = tt1;
+            h = g;
+            g = Integer.rotateLeft(f, 19);
+            f = e;
+            e = P0(tt2);
         }
-        return Long.valueOf(valueStr.toString(), 16).intValue();
-        
+        v[0] ^= a;
+        v[1] ^= b;
+        v[2] ^= c;
+        v[3] ^= d;
+        v[4] ^= e;
+        v[5] ^= f;
+        v[6] ^= g;
+        v[7] ^= h;
     }
     
     /**
-     * 'toByteArray' sets 8 integers into a byte-array
+     * 'putInt' writes an integer into a byte-array in big-endian order
      *
-     * @param a,b,c,d,e,f,g,h are integers
-     * @return a byte-array
-     * @throws IOException due to ByteArrayOutputStream
+     * @param out is a byte-array
+     * @param off is the start offset in out
+     * @param i   is an integer
      */
-    private static byte[] toByteArray(int a, int b, int c, int d, int e, int f,
-                                      int g, int h) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(32);
-        baos.write(toByteArray(a));
-        baos.write(toByteArray(b));
-        baos.write(toByteArray(c));
-        baos.write(toByteArray(d));
-        baos.write(toByteArray(e));
-        baos.write(toByteArray(f));
-        baos.write(toByteArray(g));
-        baos.write(toByteArray(h));
-        return baos.toByteArray();
+    private static void putInt(byte[] out, int off, int i) {
+        out[off] = (byte) (i >> 24);
+        out[off + 1] = (byte) (i >> 16);
+        out[off + 2] = (byte) (i >> 8);
+        out[off + 3] = (byte) i;
     }
     
     /**
@@ -246,5 +456,22 @@ class SM3Test {
             SM3.hexdigit(SM3.hash(a.getBytes()));
         }
         System.out.println(SM3.hexdigit(SM3.hash(a.getBytes())));
+        SM3 sm3 = new SM3();
+        for (byte b : a.getBytes()) {
+            sm3.update(b);
+        }
+        System.out.println(SM3.hexdigit(sm3.doFinal()));
+        byte[] half = a.substring(0, a.length() / 2).getBytes();
+        byte[] rest = a.substring(a.length() / 2).getBytes();
+        sm3.update(half);
+        SM3 snapshot = sm3.copy();
+        snapshot.update(rest);
+        sm3.update(rest);
+        System.out.println(SM3.hexdigit(snapshot.doFinal()) + " " + SM3.hexdigit(sm3.doFinal()));
+        for (String name : args) {
+            Path path = Paths.get(name);
+            boolean same = Arrays.equals(SM3.hash(path), SM3.hash(Files.readAllBytes(path)));
+            System.out.println(name + ": " + SM3.hexdigit(SM3.hash(path)) + (same ? "" : " (mismatch)"));
+        }
     }
-}
\ No newline at end of file
+}
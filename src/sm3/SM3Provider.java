@@ -0,0 +1,49 @@
+package sm3;
+
+import java.security.MessageDigest;
+import java.security.Provider;
+import java.security.Security;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * 'SM3Provider' registers the algorithms of this package, so that
+ * MessageDigest.getInstance("SM3") and Mac.getInstance("HmacSM3") work
+ * once it is added to Security
+ */
+public class SM3Provider extends Provider {
+    
+    private static final long serialVersionUID = 1L;
+    
+    public static final String NAME = "SM3";
+    
+    public SM3Provider() {
+        super(NAME, "1.0", "SM3 message digest and HmacSM3");
+        put("MessageDigest.SM3", SM3Spi.class.getName());
+        put("Alg.Alias.MessageDigest.1.2.156.10197.1.401", "SM3");
+        put("Alg.Alias.MessageDigest.OID.1.2.156.10197.1.401", "SM3");
+        put("Mac.HmacSM3", HmacSM3Spi.class.getName());
+    }
+}
+
+class SM3ProviderTest {
+    public static void main(String[] args) throws Exception {
+        Security.addProvider(new SM3Provider());
+        MessageDigest md = MessageDigest.getInstance("SM3");
+        md.update("ab".getBytes());
+        MessageDigest prefix = (MessageDigest) md.clone();
+        md.update("c".getBytes());
+        System.out.println(SM3.hexdigit(md.digest()));
+        prefix.update("c".getBytes());
+        System.out.println(SM3.hexdigit(prefix.digest()));
+        Mac mac = Mac.getInstance("HmacSM3");
+        mac.init(new SecretKeySpec("key".getBytes(), "HmacSM3"));
+        mac.update("ab".getBytes());
+        Mac keyed = (Mac) mac.clone();
+        mac.update("c".getBytes());
+        System.out.println(SM3.hexdigit(mac.doFinal()));
+        keyed.update("c".getBytes());
+        System.out.println(SM3.hexdigit(keyed.doFinal()));
+        System.out.println(SM3.hexdigit(HmacSM3.mac("key".getBytes(), "abc".getBytes())));
+    }
+}
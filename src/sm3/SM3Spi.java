@@ -0,0 +1,49 @@
+package sm3;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigestSpi;
+
+/**
+ * 'SM3Spi' exposes the incremental SM3 through java.security.MessageDigest
+ */
+public class SM3Spi extends MessageDigestSpi implements Cloneable {
+    
+    private SM3 sm3 = new SM3();
+    
+    @Override
+    protected int engineGetDigestLength() {
+        return 32;
+    }
+    
+    @Override
+    protected void engineUpdate(byte input) {
+        sm3.update(input);
+    }
+    
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int len) {
+        sm3.update(input, offset, len);
+    }
+    
+    @Override
+    protected void engineUpdate(ByteBuffer input) {
+        sm3.update(input);
+    }
+    
+    @Override
+    protected byte[] engineDigest() {
+        return sm3.doFinal();
+    }
+    
+    @Override
+    protected void engineReset() {
+        sm3.reset();
+    }
+    
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+        SM3Spi spi = (SM3Spi) super.clone();
+        spi.sm3 = sm3.copy();
+        return spi;
+    }
+}